@@ -0,0 +1,151 @@
+package io.kungfury.coworker
+
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Modifier
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArraySet
+import java.util.function.Function
+
+/**
+ * A registry of functions that can be queued with `WorkInserter.HandleAsynchronouslyNamed`.
+ *
+ * Instead of serializing a closure into the job state, only a stable name (and the arguments) get stored. The worker
+ * looks the name up here when it runs the job. Names can either be registered explicitly, or follow the form
+ * `fully.qualified.ClassName#methodName` pointing at a static method (or a method on a kotlin `object`) that takes a
+ * single `Array<com.jsoniter.any.Any>`. Reflective names are resolved once, and then cached.
+ *
+ * Since names come out of the database reflective names are off by default, and only resolve in packages allowed with
+ * `AllowPackage`.
+ */
+object AsyncFunctions {
+    private val handles = ConcurrentHashMap<String, (Array<com.jsoniter.any.Any>) -> Unit>()
+    private val resolved = ConcurrentHashMap<String, (Array<com.jsoniter.any.Any>) -> Unit>()
+    private val allowedPackages = CopyOnWriteArraySet<String>()
+
+    /**
+     * Register a kotlin function under a name.
+     *
+     * @param name
+     *  The stable name to register the function under.
+     * @param functor
+     *  The function to call when work with this name is run.
+     */
+    @JvmStatic
+    fun Register(name: String, functor: (Array<com.jsoniter.any.Any>) -> Unit) {
+        handles[name] = functor
+    }
+
+    /**
+     * Register a java function under a name.
+     *
+     * @param name
+     *  The stable name to register the function under.
+     * @param functor
+     *  The function to call when work with this name is run. The return value is ignored.
+     */
+    @JvmStatic
+    fun RegisterJava(name: String, functor: Function<Array<com.jsoniter.any.Any>, Void>) {
+        handles[name] = { args ->
+            // If we don't do this we get: `Error: functor.apply(args) must not be null` when a function
+            // returns null
+            @Suppress("UNUSED_VARIABLE") var any: Any? = functor.apply(args)
+        }
+    }
+
+    /**
+     * Remove a function from the registry.
+     *
+     * @param name
+     *  The name of the function to remove.
+     */
+    @JvmStatic
+    fun Unregister(name: String) {
+        handles.remove(name)
+    }
+
+    /**
+     * Allow reflective names to resolve to classes in a package, or any of it's subpackages.
+     *
+     * @param packageName
+     *  The package to allow, e.g. `com.mygroupid.myartifactid.jobs`.
+     */
+    @JvmStatic
+    fun AllowPackage(packageName: String) {
+        allowedPackages.add(packageName.trimEnd('.'))
+    }
+
+    /**
+     * Stop allowing reflective names in a package. Names that were already resolved stop resolving too.
+     *
+     * @param packageName
+     *  The package passed to `AllowPackage`.
+     */
+    @JvmStatic
+    fun DisallowPackage(packageName: String) {
+        allowedPackages.remove(packageName.trimEnd('.'))
+        resolved.keys.removeIf { name -> !IsAllowed(name) }
+    }
+
+    /**
+     * Resolve a name to the function that should be called.
+     *
+     * @param name
+     *  The registered, or reflective name of the function.
+     * @throws IllegalStateException
+     *  If the name is not registered, and can't be resolved.
+     */
+    @Throws(IllegalStateException::class)
+    fun Resolve(name: String): (Array<com.jsoniter.any.Any>) -> Unit {
+        val registered = handles[name]
+        if (registered != null) {
+            return registered
+        }
+        if (!IsAllowed(name)) {
+            throw IllegalStateException("Async function: [ $name ] is not registered, and not in a package allowed with AllowPackage.")
+        }
+        return resolved.computeIfAbsent(name) { toResolve -> ResolveReflectively(toResolve) }
+    }
+
+    private fun IsAllowed(name: String): Boolean {
+        val className = name.substringBefore('#')
+        return allowedPackages.any { allowed -> className.startsWith("$allowed.") }
+    }
+
+    private fun ResolveReflectively(name: String): (Array<com.jsoniter.any.Any>) -> Unit {
+        val split = name.split("#")
+        if (split.size != 2) {
+            throw IllegalStateException("Async function: [ $name ] is not registered, and is not of the form: Class#method.")
+        }
+
+        val clazz = try {
+            Class.forName(split[0])
+        } catch (classNotFound: ClassNotFoundException) {
+            throw IllegalStateException("Async function: [ $name ] is not registered, and it's class could not be found.")
+        }
+        val method = try {
+            clazz.getMethod(split[1], Array<com.jsoniter.any.Any>::class.java)
+        } catch (noMethod: NoSuchMethodException) {
+            throw IllegalStateException("Async function: [ $name ] is not registered, and has no public method accepting Array<Any>.")
+        }
+
+        val target: Any? = if (Modifier.isStatic(method.modifiers)) {
+            null
+        } else {
+            // Kotlin objects expose their singleton as a static `INSTANCE` field.
+            try {
+                clazz.getField("INSTANCE").get(null)
+            } catch (noField: NoSuchFieldException) {
+                throw IllegalStateException("Async function: [ $name ] is not static, and not on a kotlin object.")
+            }
+        }
+
+        return { args ->
+            try {
+                method.invoke(target, args)
+            } catch (err: InvocationTargetException) {
+                // Report what the function threw, not the reflection wrapper around it.
+                throw err.targetException
+            }
+        }
+    }
+}
@@ -14,6 +14,32 @@ interface CoworkerConfigurationInput {
      */
     fun getNstrandMap(): Map<Pair<String, Regex>, Int>
 
+    /**
+     * Get the strands that run in FIFO order. At most one job of a FIFO strand runs at once, and always the one that was
+     * inserted first. Matched the same way as the nstrand map, on the full strand.
+     *
+     * @return
+     *  A list of <strand, regex> pairs. Empty by default.
+     */
+    fun getFifoStrands(): List<Pair<String, Regex>> = listOf()
+
+    /**
+     * Get how work should be picked to be claimed.
+     *
+     * @return
+     *  The scheduling mode. `SchedulingMode.PRIORITY` by default.
+     */
+    fun getSchedulingMode(): SchedulingMode = SchedulingMode.PRIORITY
+
+    /**
+     * Get the weights of strands for `SchedulingMode.FAIR`. Matched the same way as the nstrand map, strands that don't
+     * match any entry have a weight of 1.
+     *
+     * @return
+     *  A map of <strand, regex> pairs to weights. Empty by default.
+     */
+    fun getStrandWeights(): Map<Pair<String, Regex>, Int> = mapOf()
+
     /**
      * Get the allowed failure limit for reading from the stream.
      *
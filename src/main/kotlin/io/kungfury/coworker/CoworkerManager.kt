@@ -3,11 +3,18 @@ package io.kungfury.coworker
 import io.kungfury.coworker.dbs.ConnectionManager
 import io.kungfury.coworker.dbs.ConnectionType
 import io.kungfury.coworker.dbs.Marginalia.AddMarginalia
-import io.kungfury.coworker.dbs.TextSafety
+import io.kungfury.coworker.dbs.Use
+import io.kungfury.coworker.dbs.postgres.QueryClass
 import io.kungfury.coworker.internal.CoworkerJavaRunnable
 import io.kungfury.coworker.internal.CoworkerKotlinRunnable
+import io.kungfury.coworker.internal.CachedStrandMatcher
 import io.kungfury.coworker.internal.DescribedWork
+import io.kungfury.coworker.internal.FairScheduler
+import io.kungfury.coworker.internal.StrandMatcher
+import io.kungfury.coworker.internal.StrandSlots
+import io.kungfury.coworker.internal.WorkFailures
 import io.kungfury.coworker.internal.WorkNotification
+import io.kungfury.coworker.state.StateCodecs
 
 import io.micrometer.core.instrument.MeterRegistry
 import io.micrometer.core.instrument.Metrics
@@ -24,6 +31,7 @@ import org.slf4j.LoggerFactory
 import java.io.IOException
 import java.lang.reflect.Constructor
 import java.sql.Connection
+import java.sql.Timestamp
 import java.time.Instant
 import java.time.ZoneOffset
 import java.util.concurrent.Executors
@@ -63,13 +71,22 @@ class CoworkerManager(
     private val futureWorkMap = HashMap<Int, Long>()
     private val garbageHeap = WorkGarbage(configurationInput, metricRegistry)
 
-    private var cleanupRuns = metricRegistry.counter("coworker.garbage.heap.runs", Tags.empty())
-
     // Ensure we start off checking old work.
     private var lastCheckedWork: Instant = Instant.now().minusSeconds(10).minus(configurationInput.getWorkCheckDelay())
     private var nextCalculatedCheck: Long = Instant.now().minusSeconds(5).epochSecond
     private val workNotifiedAbout = ArrayList<WorkNotification>()
 
+    // Strand configuration, compiled whenever the configuration input hands back something new.
+    private val strandLimits = CachedStrandMatcher<Map<Pair<String, Regex>, Int>> { StrandMatcher(it) }
+    private val fifoStrands = CachedStrandMatcher<List<Pair<String, Regex>>> { list -> StrandMatcher(list.associateWith { 1 }) }
+    private val strandWeights = CachedStrandMatcher<Map<Pair<String, Regex>, Int>> { StrandMatcher(it) }
+    private val knownStrandSlots = HashSet<String>()
+    // Advisory lock key held while reconciling strand slots ("cwss" in ascii), so only one node does it at a time.
+    private val reconcileStrandSlotsLockKey = 0x63777373L
+    private val runningFifoWork = HashSet<Long>()
+    private val fairScheduler = FairScheduler()
+    private val creditableWork = HashMap<String, Boolean>()
+
     private var listened: ReceiveChannel<String> = connectionManager.listenToChannel(
         "workers",
         configurationInput.getFailureLimit()
@@ -94,7 +111,7 @@ class CoworkerManager(
         }
 
         Runtime.getRuntime().addShutdownHook(Thread {
-            cleanupRuns.increment()
+            garbageHeap.StopFlusher()
             runBlocking { garbageHeap.Cleanup(connectionManager) }
         })
 
@@ -105,14 +122,10 @@ class CoworkerManager(
             }
         }
 
+        garbageHeap.StartFlusher(connectionManager)
+
         thread(name = "CleanupThread") {
             while (true) {
-                logger.info("Checking if we should cleanup.")
-                if (garbageHeap.ShouldCleanup()) {
-                    logger.info("We should Cleanup.")
-                    cleanupRuns.increment()
-                    runBlocking { garbageHeap.Cleanup(connectionManager) }
-                }
                 if (serviceChecker != null) {
                     val newOfflineNodes = runBlocking { serviceChecker.getNewOfflineNodes().await() }
                     if (newOfflineNodes.isNotEmpty()) {
@@ -160,7 +173,7 @@ class CoworkerManager(
                             foundWork.Strand,
                             foundWork.Priority
                         ) as DelayedKotlinWork
-                        val future = executorService.submit(CoworkerKotlinRunnable(foundWork, work))
+                        val future = executorService.submit(CoworkerKotlinRunnable(connectionManager, foundWork, work))
 
                         futures.add(future)
                         futureWorkMap[future.hashCode()] = foundWork.workId
@@ -187,7 +200,7 @@ class CoworkerManager(
                             foundWork.Strand,
                             foundWork.Priority
                         ) as DelayedJavaWork
-                        val future = executorService.submit(CoworkerJavaRunnable(foundWork, work))
+                        val future = executorService.submit(CoworkerJavaRunnable(connectionManager, foundWork, work))
 
                         futures.add(future)
                         futureWorkMap[future.hashCode()] = foundWork.workId
@@ -195,12 +208,14 @@ class CoworkerManager(
                 } catch (classNotFound: ClassNotFoundException) {
                     logger.warn("Failed to find class: [ ${foundWork.workUniqueName} ]! Passing on it, since it might be for a different language.")
                     workNotifiedAbout.removeIf { it.Id == foundWork.workId }
+                    runningFifoWork.remove(foundWork.workId)
                 } catch (exc: Exception) {
                     logger.error("Failed to find, and call constructor for: [ ${foundWork.workUniqueName} ] Exception: [ $exc ].")
+                    runningFifoWork.remove(foundWork.workId)
 
                     runBlocking {
                         withContext(Dispatchers.IO) {
-                            FailWork(foundWork.workId, foundWork.workUniqueName, "${exc.localizedMessage}\n  ${exc.stackTrace.joinToString("\n  ")}")
+                            FailWork(foundWork.workId, foundWork.workUniqueName, exc)
                         }
                     }
                 }
@@ -239,6 +254,10 @@ class CoworkerManager(
                             return@retainAll true
                         }
                     }
+                    // The next job in a FIFO strand can't start until this one is deleted.
+                    if (runningFifoWork.remove(workId) && garbageHeap.isScheduledForDelete(workId)) {
+                        garbageHeap.FlushSoon()
+                    }
                     false
                 } else {
                     true
@@ -261,28 +280,41 @@ class CoworkerManager(
             return
         }
 
+        // Work can be notified more than once (e.g. a coalesced insert moving it's run at), only the latest counts.
+        val incoming = LinkedHashMap<Long, WorkNotification>()
         var polled = listened.poll()
         while (polled != null) {
             logger.debug("Found polled event: $polled")
-            try {
-                val split = polled.split(";")
-                if (split.size != 5) {
-                    throw IllegalStateException("Polled event: [ $polled ] does not match format.")
-                }
+            // Batched writers send one notification per line.
+            for (event in polled.split("\n")) {
+                try {
+                    val split = event.split(";")
+                    // The work name, and anything after it is optional.
+                    if (split.size < 5) {
+                        throw IllegalStateException("Polled event: [ $event ] does not match format.")
+                    }
 
-                val parsed = WorkNotification()
-                parsed.Id = split[0].toLong()
-                parsed.Priority = split[1].toInt()
-                parsed.QueuedAt = split[2].toLong()
-                parsed.Stage = split[3].toInt()
-                parsed.Strand = split[4]
+                    val parsed = WorkNotification()
+                    parsed.Id = split[0].toLong()
+                    parsed.Priority = split[1].toInt()
+                    parsed.QueuedAt = split[2].toLong()
+                    parsed.Stage = split[3].toInt()
+                    parsed.Strand = split[4]
+                    parsed.WorkName = if (split.size > 5 && split[5].isNotEmpty()) split[5] else null
 
-                workNotifiedAbout.add(parsed)
-            } catch (exc: Exception) {
-                logger.error("Failed to process notifications from postgres: $exc")
+                    incoming.remove(parsed.Id)
+                    incoming[parsed.Id] = parsed
+                } catch (exc: Exception) {
+                    logger.error("Failed to process notifications from postgres: $exc")
+                }
             }
             polled = listened.poll()
         }
+
+        if (incoming.isNotEmpty()) {
+            workNotifiedAbout.removeIf { incoming.containsKey(it.Id) }
+            workNotifiedAbout.addAll(incoming.values)
+        }
     }
 
     /**
@@ -296,14 +328,16 @@ class CoworkerManager(
                 runBlocking {
                     when (connectionManager.CONNECTION_TYPE) {
                         ConnectionType.POSTGRES -> {
-                            connectionManager.executeTransaction({ connection ->
-                                val statement = connection.prepareStatement(AddMarginalia(
+                            connectionManager.executeReadOnly { connection ->
+                                QueryClass.BACKGROUND.ApplyTo(connection)
+                                connection.prepareStatement(AddMarginalia(
                                     "CoworkerManager_findHeadlessWork",
                                     "SELECT" +
                                         " id," +
                                         " stage," +
                                         " strand," +
                                         " priority," +
+                                        " work_unique_name," +
                                         " COALESCE(run_at, created_at) AS queued_at " +
                                         "FROM" +
                                         " public.delayed_work " +
@@ -311,33 +345,38 @@ class CoworkerManager(
                                         " locked_by IS NULL " +
                                         "AND" +
                                         " id != ANY(?)"
-                                ))
-                                val ids = workNotifiedAbout.map { work ->
-                                    work.Id
-                                }.toMutableList()
-                                if (ids.isEmpty()) {
-                                    // POSTGRES needs at least one value otherwise it tries to
-                                    // compare against the empty set, and this results in 0 jobs being returned.
-                                    ids.add(-1)
+                                )).Use { statement ->
+                                    val ids = workNotifiedAbout.map { work ->
+                                        work.Id
+                                    }.toMutableList()
+                                    if (ids.isEmpty()) {
+                                        // POSTGRES needs at least one value otherwise it tries to
+                                        // compare against the empty set, and this results in 0 jobs being returned.
+                                        ids.add(-1)
+                                    }
+                                    statement.setArray(1, connection.createArrayOf("BIGINT", ids.toTypedArray()))
+                                    val rs = statement.executeQuery()
+
+                                    while (rs.next()) {
+                                        val id = rs.getLong("id")
+                                        val notification = WorkNotification()
+                                        notification.Id = id
+                                        notification.Priority = rs.getInt("Priority")
+                                        notification.QueuedAt = rs.getTimestamp("queued_at")
+                                            .toLocalDateTime().toEpochSecond(ZoneOffset.UTC)
+                                        notification.Stage = rs.getInt("stage")
+                                        notification.Strand = rs.getString("strand")
+                                        notification.WorkName = rs.getString("work_unique_name")
+                                        workNotifiedAbout.add(notification)
+                                    }
                                 }
-                                statement.setArray(1, connection.createArrayOf("BIGINT", ids.toTypedArray()))
-                                val rs = statement.executeQuery()
-
-                                while (rs.next()) {
-                                    val id = rs.getLong("id")
-                                    val notification = WorkNotification()
-                                    notification.Id = id
-                                    notification.Priority = rs.getInt("Priority")
-                                    notification.QueuedAt = rs.getTimestamp("queued_at")
-                                        .toLocalDateTime().toEpochSecond(ZoneOffset.UTC)
-                                    notification.Stage = rs.getInt("stage")
-                                    notification.Strand = rs.getString("strand")
-                                    workNotifiedAbout.add(notification)
-                                }
-                            }, true)
+                            }
                         }
                     }
                 }
+                if (configurationInput.getNstrandMap().isNotEmpty()) {
+                    runBlocking { ReconcileStrandSlots() }
+                }
                 nextCalculatedCheck = thisInstant.plus(configurationInput.getWorkCheckDelay()).epochSecond
                 lastCheckedWork = thisInstant
             } catch (exc: Exception) {
@@ -351,6 +390,7 @@ class CoworkerManager(
     /**
      * Attempts to find a free work that needs to be done.
      */
+    @UseExperimental(CreditApi::class)
     private fun FindAndLockWork(): DescribedWork? {
         if (workNotifiedAbout.isEmpty()) {
             return null
@@ -358,33 +398,60 @@ class CoworkerManager(
 
         try {
             val instant = Instant.now().epochSecond
-            workNotifiedAbout.sortBy { work -> work.Priority.toLong() + (instant - work.QueuedAt) }
+            val artificialPriority = { work: WorkNotification -> work.Priority.toLong() + (instant - work.QueuedAt) }
+            val fair = configurationInput.getSchedulingMode() == SchedulingMode.FAIR
+            val ordered = if (fair) {
+                fairScheduler.Order(workNotifiedAbout, this::StrandWeightFor, artificialPriority)
+            } else {
+                workNotifiedAbout.sortBy(artificialPriority)
+                workNotifiedAbout
+            }
 
             var locked: DescribedWork? = null
-            var lockedToRemove: WorkNotification? = null
-            for (work in workNotifiedAbout) {
-                if (instant < work.QueuedAt) {
+            var lockedStrand = ""
+            var lockedFifo = false
+            val attemptedFifoStrands = HashSet<String>()
+            val creditBudgets = HashMap<CreditLedger.CreditKey, Boolean>()
+            for (work in ordered) {
+                val fifo = IsFifoStrand(work.Strand)
+                if (fifo) {
+                    // Any notification for a FIFO strand can claim it's head (which checks run at itself), so only
+                    // try each FIFO strand once.
+                    if (!attemptedFifoStrands.add(work.Strand)) {
+                        continue
+                    }
+                } else if (instant < work.QueuedAt) {
                     // We haven't hit run at yet.
                     continue
                 }
-                val lockWorkResult = runBlocking { withContext(Dispatchers.IO) { AttemptLockWork(work.Id) } }
+                if (!HasCreditBudget(work, creditBudgets)) {
+                    continue
+                }
+                val strandLimit = if (fifo) -1 else StrandLimitFor(work.Strand)
+                val lockWorkResult = runBlocking { withContext(Dispatchers.IO) { AttemptLockWork(work.Id, work.Strand, strandLimit, fifo) } }
                 if (lockWorkResult.first) {
-                    val isAtMax = runBlocking { withContext(Dispatchers.IO) { ValidateNStrand(work.Strand) } }
-                    if (!isAtMax) {
-                        lockedToRemove = work
-                        locked = lockWorkResult.second
-                        break
-                    } else {
-                        runBlocking { withContext(Dispatchers.IO) { ReleaseToPool(work.Id) } }
-                    }
+                    locked = lockWorkResult.second
+                    lockedStrand = work.Strand
+                    lockedFifo = fifo
+                    break
                 }
             }
 
             if (locked == null) {
                 logger.info("Failed to find work to work that wasn't already picked up!")
             } else {
-                workNotifiedAbout.remove(lockedToRemove)
-                return locked
+                val lockedWork: DescribedWork = locked
+                if (fair) {
+                    fairScheduler.Charge(lockedStrand, StrandWeightFor(lockedStrand))
+                }
+                if (lockedFifo) {
+                    runningFifoWork.add(lockedWork.workId)
+                    // Anything before the head of a FIFO strand has already been deleted.
+                    workNotifiedAbout.removeIf { it.Id == lockedWork.workId || (it.Strand == lockedStrand && it.Id < lockedWork.workId) }
+                } else {
+                    workNotifiedAbout.removeIf { it.Id == lockedWork.workId }
+                }
+                return lockedWork
             }
         } catch (exc: Exception) {
             logger.error("Failed to find, and lock work: [ $exc ]!\n  ${exc.stackTrace.joinToString("\n  ")}")
@@ -397,96 +464,246 @@ class CoworkerManager(
     /**
      * Attempts to lock a particular piece of work.
      *
+     * If the work's strand is limited, the claim only goes through while the strand has a free slot. The strand's slot
+     * row is locked (skipping it if another node is claiming on the same strand) so two nodes can't both take the last
+     * slot, and the slot itself is taken by a trigger when the work is stamped. So a full strand is skipped without
+     * ever locking it's work.
+     *
      * @param id
      *  The ID of the work to potentially lock.
+     * @param strand
+     *  The strand of the work, as it was notified.
+     * @param strandLimit
+     *  The most instances of the work's strand that may run at once, or -1 if the strand isn't limited.
+     * @param fifo
+     *  If the strand runs in FIFO order. Instead of the work itself, the head of it's strand (the work with the lowest
+     *  id) is locked, and only if it isn't already running. So the work locked may not be the work asked for.
      * @return
      *  Returns a pair of <succesfully_locked, locked_work>.
      */
     @Throws(TimeoutException::class, IOException::class, IllegalStateException::class)
-    private suspend fun AttemptLockWork(id: Long): Pair<Boolean, DescribedWork?> {
+    private suspend fun AttemptLockWork(id: Long, strand: String, strandLimit: Int, fifo: Boolean): Pair<Boolean, DescribedWork?> {
         logger.info("AttemptLockWork called for $id")
 
         when (connectionManager.CONNECTION_TYPE) {
             ConnectionType.POSTGRES -> {
-                return connectionManager.executeTransaction({ connection: Connection ->
-                    val statement = connection.prepareStatement(AddMarginalia(
-                        "CoworkerManager_attemptLock",
-                        "WITH select_work AS ( " +
-                            "SELECT * FROM public.delayed_work WHERE id = ? AND locked_by IS NULL LIMIT 1 FOR UPDATE SKIP LOCKED " +
+                val result = connectionManager.executeTransaction({ connection: Connection ->
+                    QueryClass.CLAIM.ApplyTo(connection)
+                    if (strandLimit != -1 && !knownStrandSlots.contains(strand)) {
+                        EnsureStrandSlot(connection, id)
+                    }
+
+                    connection.prepareStatement(AddMarginalia(
+                        when {
+                            fifo -> "CoworkerManager_attemptLockStrandHead"
+                            strandLimit != -1 -> "CoworkerManager_attemptLockInStrand"
+                            else -> "CoworkerManager_attemptLock"
+                        },
+                        "WITH " +
+                            (if (strandLimit == -1) "" else "strand_slot AS (" +
+                                " SELECT in_use FROM public.delayed_work_strand_slots" +
+                                " WHERE strand = (SELECT strand FROM public.delayed_work WHERE id = ?) FOR UPDATE SKIP LOCKED " +
+                                "), ") +
+                            "select_work AS ( " +
+                            "SELECT * FROM public.delayed_work WHERE id = " +
+                            (if (!fifo) "?" else "(" +
+                                "SELECT id FROM public.delayed_work" +
+                                " WHERE strand = COALESCE((SELECT strand FROM public.delayed_work WHERE id = ?), ?)" +
+                                " ORDER BY id LIMIT 1" +
+                                ")") +
+                            " AND locked_by IS NULL AND (run_at IS NULL OR run_at <= ?)" +
+                            (if (strandLimit == -1) "" else " AND (SELECT in_use FROM strand_slot) < ?") +
+                            " LIMIT 1 FOR UPDATE SKIP LOCKED " +
                             "), " +
                             "stamp_work AS (" +
-                            " UPDATE public.delayed_work SET locked_by = ? FROM select_work WHERE delayed_work.id = select_work.id RETURNING delayed_work.id " +
+                            " UPDATE public.delayed_work SET locked_by = ?, dedup_key = NULL FROM select_work WHERE delayed_work.id = select_work.id RETURNING delayed_work.id " +
                             ") " +
-                            "SELECT work_unique_name, stage, state, strand, priority, COALESCE(run_at, created_at) AS queued_at FROM public.delayed_work JOIN stamp_work USING (id)"
-                    ))
-                    statement.setLong(1, id)
-                    statement.setString(2, NodeIdentifier.id)
-                    val rs = statement.executeQuery()
-
-                    if (rs == null) {
-                        Pair(false, null)
-                    } else {
-                        if (rs.next()) {
-                            Pair(true, DescribedWork(
-                                rs.getString("work_unique_name"),
-                                id,
-                                rs.getInt("stage"),
-                                rs.getString("strand"),
-                                rs.getString("state"),
-                                rs.getInt("priority"),
-                                rs.getTimestamp("queued_at").toLocalDateTime().toEpochSecond(ZoneOffset.UTC)
-                            ))
-                        } else {
+                            "SELECT id, work_unique_name, stage, state, state_bytes, strand, priority, COALESCE(run_at, created_at) AS queued_at FROM public.delayed_work JOIN stamp_work USING (id)"
+                    )).Use { statement ->
+                        var idx = 1
+                        if (strandLimit != -1) {
+                            statement.setLong(idx++, id)
+                        }
+                        statement.setLong(idx++, id)
+                        if (fifo) {
+                            statement.setString(idx++, strand)
+                        }
+                        // Work can be pushed back after we were notified about it (e.g. coalesced work), so don't trust
+                        // the notification's queued at time alone.
+                        statement.setTimestamp(idx++, Timestamp.from(Instant.now()))
+                        if (strandLimit != -1) {
+                            statement.setInt(idx++, strandLimit)
+                        }
+                        statement.setString(idx, NodeIdentifier.id)
+                        val rs = statement.executeQuery()
+
+                        if (rs == null) {
                             Pair(false, null)
+                        } else {
+                            if (rs.next()) {
+                                Pair(true, DescribedWork(
+                                    rs.getString("work_unique_name"),
+                                    rs.getLong("id"),
+                                    rs.getInt("stage"),
+                                    rs.getString("strand"),
+                                    StateCodecs.ReadState(rs),
+                                    rs.getInt("priority"),
+                                    rs.getTimestamp("queued_at").toLocalDateTime().toEpochSecond(ZoneOffset.UTC)
+                                ))
+                            } else {
+                                Pair(false, null)
+                            }
                         }
                     }
                 }, true)
+
+                if (strandLimit != -1) {
+                    knownStrandSlots.add(strand)
+                }
+                return result
             }
         }
     }
 
     /**
-     * Checks if a work we're about to work has too many instances working.
+     * Get the N-Strand limit for a strand, recompiling the matcher whenever the configured map changes.
      *
      * @param strand
-     *  The strand of the work to check.
+     *  The strand to get the limit of.
+     * @return
+     *  The limit, or -1 if the strand isn't limited.
      */
-    @Throws(TimeoutException::class, IOException::class, IllegalStateException::class)
-    private suspend fun ValidateNStrand(strand: String): Boolean {
+    private fun StrandLimitFor(strand: String): Int {
         val nstrand = configurationInput.getNstrandMap()
         if (nstrand.isEmpty()) {
-            return false
+            return -1
         }
+        return strandLimits.For(nstrand).LimitFor(strand)
+    }
 
-        var maxNStrand = -1
-        for (strandPair in nstrand.keys) {
-            val strandKey = strandPair.first
-            val strandRegex = strandPair.second
-
-            if (strandKey == strand) {
-                maxNStrand = nstrand[strandPair]!!
-                break
-            } else if (strandRegex.matches(strand)) {
-                maxNStrand = nstrand[strandPair]!!
-                break
+    /**
+     * Checks if notified work is a `CreditableJob` that's out of credits, so it can be skipped without claiming it.
+     *
+     * This never waits on the database. The ledger answers from what it has cached, and refreshes stale credits in the
+     * background.
+     *
+     * @param work
+     *  The notified work. Work notified without a name is always allowed.
+     * @param checked
+     *  Budgets already checked in this pass, so each (job, strand, stage) is only checked once.
+     */
+    @UseExperimental(CreditApi::class)
+    private fun HasCreditBudget(work: WorkNotification, checked: MutableMap<CreditLedger.CreditKey, Boolean>): Boolean {
+        val workName = work.WorkName ?: return true
+        val creditable = creditableWork.getOrPut(workName) {
+            try {
+                CreditableJob::class.java.isAssignableFrom(Class.forName(workName, false, javaClass.classLoader))
+            } catch (err: ClassNotFoundException) {
+                false
             }
         }
-        // Short circut
-        if (maxNStrand == -1) {
+        if (!creditable) {
+            return true
+        }
+        val key = CreditLedger.CreditKey(workName, work.Strand, work.Stage)
+        return checked.getOrPut(key) { CreditLedger.ForConnectionManager(connectionManager).HasCachedBudget(key) }
+    }
+
+    /**
+     * Get the weight of a strand for fair scheduling.
+     *
+     * @param strand
+     *  The strand to get the weight of.
+     */
+    private fun StrandWeightFor(strand: String): Int {
+        val weights = configurationInput.getStrandWeights()
+        if (weights.isEmpty()) {
+            return 1
+        }
+        val weight = strandWeights.For(weights).LimitFor(strand)
+        return if (weight < 1) 1 else weight
+    }
+
+    /**
+     * Checks if a strand runs in FIFO order, recompiling the matcher whenever the configured list changes.
+     *
+     * @param strand
+     *  The strand to check.
+     */
+    private fun IsFifoStrand(strand: String): Boolean {
+        val fifo = configurationInput.getFifoStrands()
+        if (fifo.isEmpty()) {
             return false
         }
+        return fifoStrands.For(fifo).LimitFor(strand) != -1
+    }
 
+    /**
+     * Makes sure a limited strand has a row in `delayed_work_strand_slots`, so claims on it have a row to lock.
+     *
+     * Slot rows are never deleted, so once a claim on a strand has committed it's remembered, and not inserted again.
+     * The strand is read from the work itself, since the notified strand has been purified, and may not match.
+     *
+     * @param connection
+     *  The connection that's locking the work.
+     * @param id
+     *  The id of the work being locked.
+     */
+    private fun EnsureStrandSlot(connection: Connection, id: Long) {
+        connection.prepareStatement(AddMarginalia(
+            "CoworkerManager_ensureStrandSlot",
+            "INSERT INTO public.delayed_work_strand_slots (strand, in_use)" +
+                " SELECT strand, 0 FROM public.delayed_work WHERE id = ? ON CONFLICT (strand) DO NOTHING"
+        )).Use { statement ->
+            statement.setLong(1, id)
+            statement.execute()
+        }
+    }
+
+    /**
+     * Recounts the slots in use for every limited strand.
+     *
+     * Slots are kept up to date on every lock, and unlock. This only repairs counts that drifted, e.g. from strands that
+     * became limited while their work was already running.
+     *
+     * Only one node reconciles at a time, the rest skip it while the advisory lock is held. The slot rows are locked
+     * before anything is counted, so a claim, or release can't land between the count, and the write. Those wait on the
+     * slot row (or skip it), and are counted by the next statement's snapshot.
+     */
+    @Throws(TimeoutException::class, IOException::class, IllegalStateException::class)
+    private suspend fun ReconcileStrandSlots() {
         when (connectionManager.CONNECTION_TYPE) {
             ConnectionType.POSTGRES -> {
-                return connectionManager.executeTransaction({ connection ->
-                    val statement = connection.prepareStatement(AddMarginalia(
-                        "CoworkerManager_releaseIfStrandedCount",
-                        "SELECT COUNT(*) as strand_count FROM public.delayed_work WHERE strand = ? AND locked_by IS NOT NULL"
-                    ))
-                    statement.setString(1, TextSafety.EnforceStringPurity(strand, true))
-                    val rs = statement.executeQuery()
-
-                    rs.getLong("strand_count") > maxNStrand
+                connectionManager.executeTransaction({ connection ->
+                    QueryClass.BACKGROUND.ApplyTo(connection)
+                    val reconciling = connection.prepareStatement(AddMarginalia(
+                        "CoworkerManager_reconcileStrandSlotsLock",
+                        "SELECT pg_try_advisory_xact_lock(?) AS locked"
+                    )).Use { statement ->
+                        statement.setLong(1, reconcileStrandSlotsLockKey)
+                        val rs = statement.executeQuery()
+                        rs.next() && rs.getBoolean("locked")
+                    }
+                    if (!reconciling) {
+                        return@executeTransaction
+                    }
+
+                    connection.prepareStatement(AddMarginalia(
+                        "CoworkerManager_lockStrandSlots",
+                        "SELECT strand FROM public.delayed_work_strand_slots ORDER BY strand FOR UPDATE"
+                    )).Use { statement ->
+                        statement.executeQuery()
+                    }
+                    connection.prepareStatement(AddMarginalia(
+                        "CoworkerManager_reconcileStrandSlots",
+                        "UPDATE public.delayed_work_strand_slots AS slots SET in_use = counted.in_use FROM (" +
+                            "SELECT slots.strand, (" +
+                            "SELECT COUNT(*) FROM public.delayed_work WHERE strand = slots.strand AND locked_by IS NOT NULL" +
+                            ") AS in_use FROM public.delayed_work_strand_slots AS slots" +
+                            ") AS counted WHERE slots.strand = counted.strand AND slots.in_use <> counted.in_use"
+                    )).Use { statement ->
+                        statement.executeUpdate()
+                    }
                 }, true)
             }
         }
@@ -499,12 +716,17 @@ class CoworkerManager(
         when (connectionManager.CONNECTION_TYPE) {
             ConnectionType.POSTGRES -> {
                 connectionManager.executeTransaction({ connection ->
-                    val statement = connection.prepareStatement(AddMarginalia(
+                    val hosts = connection.createArrayOf("VARCHAR", list.toTypedArray())
+                    StrandSlots.LockInOrder(connection, "CoworkerManager_lockStrandSlotsForHosts", "locked_by = ANY(?)") { statement ->
+                        statement.setArray(1, hosts)
+                    }
+                    connection.prepareStatement(AddMarginalia(
                         "CoworkerManager_ReleaseToPoolForHosts",
                         "UPDATE public.delayed_work SET locked_by = NULL WHERE locked_by = ANY(?)"
-                    ))
-                    statement.setArray(1, connection.createArrayOf("VARCHAR", list.toTypedArray()))
-                    statement.execute()
+                    )).Use { statement ->
+                        statement.setArray(1, hosts)
+                        statement.execute()
+                    }
                 }, true)
             }
         }
@@ -525,14 +747,15 @@ class CoworkerManager(
         when (connectionManager.CONNECTION_TYPE) {
             ConnectionType.POSTGRES -> {
                 return connectionManager.executeTransaction({ connection ->
-                    val statement = connection.prepareStatement(AddMarginalia(
+                    connection.prepareStatement(AddMarginalia(
                         "CoworkerManager_ReleaseToPool",
                         "UPDATE public.delayed_work SET locked_by = NULL WHERE id = ?"
-                    ))
-                    statement.setLong(1, id)
-                    val bool = statement.execute()
+                    )).Use { statement ->
+                        statement.setLong(1, id)
+                        val bool = statement.execute()
 
-                    bool
+                        bool
+                    }
                 }, true)
             }
         }
@@ -551,55 +774,40 @@ class CoworkerManager(
         when (connectionManager.CONNECTION_TYPE) {
             ConnectionType.POSTGRES -> {
                 return connectionManager.executeTransaction({ connection ->
-                    val statement = connection.prepareStatement(AddMarginalia(
+                    QueryClass.CLAIM.ApplyTo(connection)
+                    connection.prepareStatement(AddMarginalia(
                         "CoworkerManager_isWorkLocked",
                         "SELECT id FROM public.delayed_work WHERE id = ? AND locked_by = ? LIMIT 1"
-                    ))
-                    statement.setLong(1, id)
-                    statement.setString(2, NodeIdentifier.id)
-                    val rs = statement.executeQuery()
+                    )).Use { statement ->
+                        statement.setLong(1, id)
+                        statement.setString(2, NodeIdentifier.id)
+                        val rs = statement.executeQuery()
 
-                    rs.next()
+                        rs.next()
+                    }
                 }, true)
             }
         }
     }
 
     /**
-     * Marks a piece of work as failed.
+     * Marks a piece of work as failed, or retries it if it has a retry policy.
      *
      * @param id
      *  The id of the work to fail.
      * @param workName
      *  The name of this piece of work
-     * @param failureReason
-     *  The reason the piece of work failed.
+     * @param failure
+     *  The exception the piece of work failed with.
      */
     @Throws(TimeoutException::class, IOException::class, IllegalStateException::class)
-    private suspend fun FailWork(id: Long, workName: String, failureReason: String) {
+    private suspend fun FailWork(id: Long, workName: String, failure: Throwable) {
         logger.info("FailWork called for $id")
 
         when (connectionManager.CONNECTION_TYPE) {
             ConnectionType.POSTGRES -> {
                 connectionManager.executeTransaction({ connection: Connection ->
-                    val statement = connection.prepareStatement(AddMarginalia(
-                        "CoworkerManager_FailWork",
-                        "DELETE FROM public.delayed_work WHERE id = ?"
-                    ))
-                    statement.setLong(1, id)
-                    statement.execute()
-
-                    val createFailed = connection.prepareStatement(AddMarginalia(
-                        "CoworkerManager_failWorkCreate",
-                        "INSERT INTO public.failed_work(id, failed_at, stage, work_unique_name, failed_msg, state, run_by) VALUES ( ?, current_timestamp, ?, ?, ?, ?, ? )"
-                    ))
-                    createFailed.setLong(1, id)
-                    createFailed.setInt(2, -1)
-                    createFailed.setString(3, workName)
-                    createFailed.setString(4, failureReason)
-                    createFailed.setString(5, "")
-                    createFailed.setString(6, NodeIdentifier.id)
-                    createFailed.execute()
+                    WorkFailures.RetryOrFail(connection, id, workName, FailureFingerprints.FromThrowable(workName, failure), null)
                 }, true)
             }
         }
@@ -0,0 +1,508 @@
+package io.kungfury.coworker
+
+import io.kungfury.coworker.dbs.ConnectionManager
+import io.kungfury.coworker.dbs.ConnectionType
+import io.kungfury.coworker.dbs.Marginalia.AddMarginalia
+import io.kungfury.coworker.dbs.Use
+import io.kungfury.coworker.internal.states.CreditableJobState
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+
+import org.slf4j.LoggerFactory
+
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.LockSupport
+import kotlin.concurrent.thread
+
+/**
+ * Keeps the credit accounting of `CreditableJob`s in memory, and writes it in batches.
+ *
+ * Credits, and credit use are read from the database at most once every `cacheTtl` per (job, strand, stage). Credits
+ * taken, and given back, and the run times of finished jobs are added up locally, and written every `flushInterval`
+ * with one statement per table for everything that changed. Until they're written, local changes are layered on top
+ * of the cached values, so a node always sees it's own usage right away. Other nodes see it within a flush interval,
+ * and a cache ttl.
+ *
+ * Run times are kept in milliseconds as a time-decayed average (see `DurationStats`), which is merged in the database
+ * by weight, so nodes flushing at the same time don't overwrite each other, and old history ages out.
+ *
+ * Credit use is split over `shards` rows per (job, strand, stage), each node only writing to the shard of it's node
+ * identifier, and summed when read. So nodes don't queue behind each other's row locks. The shard is picked once when
+ * the ledger is created, so every flush from a node lands on the same row.
+ *
+ * @param connectionManager
+ *  The connection manager to read, and write credits with.
+ * @param cacheTtl
+ *  How long credits read from the database are trusted for.
+ * @param flushInterval
+ *  How often local changes are written.
+ * @param halfLife
+ *  How long it takes for a run to count half as much towards the average.
+ * @param shards
+ *  The number of rows credit use is split over. Should be at least the number of nodes that commonly run the same
+ *  creditable job.
+ */
+@CreditApi
+class CreditLedger(
+    private val connectionManager: ConnectionManager,
+    private val cacheTtl: Duration = Duration.ofSeconds(1),
+    private val flushInterval: Duration = Duration.ofSeconds(1),
+    private val halfLife: Duration = Duration.ofMinutes(10),
+    shards: Int = DEFAULT_SHARDS
+) {
+    private val shard = ShardFor(NodeIdentifier.id, shards)
+    private val logger = LoggerFactory.getLogger(CreditLedger::class.java)
+    private val entries = ConcurrentHashMap<CreditKey, Entry>()
+    private val stats = ConcurrentHashMap<CreditKey, DurationStats>()
+
+    @Volatile
+    private var running = true
+
+    private val flusher = thread(name = "CreditLedgerFlusher", isDaemon = true) {
+        while (running) {
+            LockSupport.parkNanos(flushInterval.toNanos())
+            try {
+                Flush()
+            } catch (err: Exception) {
+                logger.error("Failed to flush credit usage! Exception: [ $err ].")
+            }
+        }
+    }
+
+    /**
+     * Get the credits of a (job, strand, stage), reading them from the database if the cached copy is too old.
+     */
+    internal suspend fun Get(key: CreditKey): CreditableJobState {
+        val entry = entries.computeIfAbsent(key) { Entry() }
+        if (entry.IsStale(System.nanoTime(), cacheTtl.toNanos())) {
+            val written = entry.Written()
+            val read = withContext(Dispatchers.IO) { Read(key) }
+            entry.Refresh(read, System.nanoTime(), written)
+        }
+        return entry.View()
+    }
+
+    /**
+     * Checks if a (job, strand, stage) has the budget to run one more job.
+     *
+     * A job is always allowed to run if nothing else is using credits, so jobs slower than the whole budget still run
+     * one at a time.
+     */
+    internal suspend fun HasBudget(key: CreditKey): Boolean = HasBudget(Get(key))
+
+    /**
+     * Checks if a (job, strand, stage) has the budget to run one more job, without waiting on the database.
+     *
+     * Answers from the cached credits, and starts reading them again in the background if they're stale. Credits that
+     * have never been read only count this node's own usage until the first read lands.
+     */
+    internal fun HasCachedBudget(key: CreditKey): Boolean {
+        val entry = entries.computeIfAbsent(key) { Entry() }
+        if (entry.StartRefresh(System.nanoTime(), cacheTtl.toNanos())) {
+            GlobalScope.launch(Dispatchers.IO) {
+                try {
+                    val written = entry.Written()
+                    entry.Refresh(Read(key), System.nanoTime(), written)
+                } catch (err: Exception) {
+                    logger.error("Failed to refresh credits for [ $key ]! Exception: [ $err ].")
+                } finally {
+                    entry.EndRefresh()
+                }
+            }
+        }
+        return HasBudget(entry.View())
+    }
+
+    /**
+     * Take credits for a job that's about to run.
+     *
+     * @return
+     *  The credits in use after taking them.
+     */
+    internal fun Acquire(key: CreditKey, credits: Long): Long = entries.computeIfAbsent(key) { Entry() }.Acquire(credits)
+
+    /**
+     * Give back credits for a job that didn't run.
+     */
+    internal fun Release(key: CreditKey, credits: Long) {
+        entries.computeIfAbsent(key) { Entry() }.Acquire(-credits)
+    }
+
+    /**
+     * Give back credits for a job that ran, and count how long it took towards the average.
+     */
+    internal fun Complete(key: CreditKey, credits: Long, millis: Long) {
+        entries.computeIfAbsent(key) { Entry() }.Complete(credits, millis)
+        stats.computeIfAbsent(key) { DurationStats(halfLife) }.Record(millis)
+    }
+
+    /**
+     * Get the run time statistics of a (job, strand, stage), as seen by this node.
+     *
+     * @param jobName
+     *  The work unique name of the job.
+     * @param strand
+     *  The strand of the job.
+     * @param stage
+     *  The stage of the job.
+     * @return
+     *  The statistics, or null if this node hasn't finished that job yet.
+     */
+    fun StatsFor(jobName: String, strand: String, stage: Int): DurationStats? = stats[CreditKey(jobName, strand, stage)]
+
+    /**
+     * Write every local change to the database now. Changes that fail to write are kept for the next flush.
+     */
+    fun Flush() {
+        val changed = ArrayList<Pair<CreditKey, Pending>>()
+        for ((key, entry) in entries) {
+            val pending = entry.TakePending() ?: continue
+            changed.add(Pair(key, pending))
+        }
+        if (changed.isEmpty()) {
+            return
+        }
+
+        try {
+            Write(changed)
+        } catch (err: Exception) {
+            changed.forEach { (key, pending) -> entries[key]?.Restore(pending) }
+            throw err
+        }
+        changed.forEach { (key, pending) -> entries[key]?.Acknowledge(pending) }
+    }
+
+    /**
+     * Stops the background flusher, and writes anything left.
+     */
+    fun Close() {
+        running = false
+        LockSupport.unpark(flusher)
+        flusher.join()
+        Flush()
+        connectionManagerLedgers.remove(connectionManager, this)
+    }
+
+    private fun Read(key: CreditKey): CreditableJobState = runBlocking {
+        when (connectionManager.CONNECTION_TYPE) {
+            ConnectionType.POSTGRES -> {
+                // Always read the primary, a lagging replica would miss usage that's already been written.
+                connectionManager.executeTransaction({ connection ->
+                    connection.prepareStatement(AddMarginalia(
+                        "CreditLedger_read",
+                        "SELECT" +
+                            " credits.average_ms," +
+                            " credits.average_weight * power(0.5, EXTRACT(EPOCH FROM (current_timestamp - credits.averaged_at)) / ?) AS average_weight," +
+                            " credits.total_jobs," +
+                            " (SELECT SUM(in_use_ms) FROM public.delayed_work_credit_use_shards" +
+                            " WHERE job_name = ? AND strand_name = ? AND stage = ?) AS in_use_ms" +
+                            " FROM (SELECT 1) AS one LEFT JOIN public.delayed_work_credits AS credits" +
+                            " ON credits.job_name = ? AND credits.strand_name = ? AND credits.stage = ?"
+                    )).Use { statement ->
+                        statement.setDouble(1, HalfLifeSeconds())
+                        for (offset in arrayOf(1, 4)) {
+                            statement.setString(offset + 1, key.jobName)
+                            statement.setString(offset + 2, key.strand)
+                            statement.setInt(offset + 3, key.stage)
+                        }
+                        val rs = statement.executeQuery()
+                        rs.next()
+                        // getLong, and getDouble read NULL (no row yet) as 0.
+                        CreditableJobState(
+                            Math.round(rs.getDouble("average_ms")),
+                            rs.getLong("total_jobs"),
+                            rs.getLong("in_use_ms"),
+                            rs.getDouble("average_weight")
+                        )
+                    }
+                }, true)
+            }
+        }
+    }
+
+    private fun Write(changed: List<Pair<CreditKey, Pending>>) = runBlocking {
+        when (connectionManager.CONNECTION_TYPE) {
+            ConnectionType.POSTGRES -> {
+                connectionManager.executeTransaction({ connection ->
+                    val inUse = changed.filter { it.second.inUseDelta != 0L }
+                    if (inUse.isNotEmpty()) {
+                        val jobNames = connection.createArrayOf("VARCHAR", inUse.map { it.first.jobName }.toTypedArray())
+                        val strands = connection.createArrayOf("VARCHAR", inUse.map { it.first.strand }.toTypedArray())
+                        val stages = connection.createArrayOf("INTEGER", inUse.map { it.first.stage }.toTypedArray())
+
+                        connection.prepareStatement(AddMarginalia(
+                            "CreditLedger_ensureInUse",
+                            "INSERT INTO public.delayed_work_credit_use_shards (job_name, strand_name, stage, shard, in_use_ms)" +
+                                " SELECT job_name, strand_name, stage, ?, 0" +
+                                " FROM unnest(?::VARCHAR[], ?::VARCHAR[], ?::INTEGER[]) AS batch(job_name, strand_name, stage)" +
+                                " ON CONFLICT (job_name, strand_name, stage, shard) DO NOTHING"
+                        )).Use { ensure ->
+                            ensure.setInt(1, shard)
+                            ensure.setArray(2, jobNames)
+                            ensure.setArray(3, strands)
+                            ensure.setArray(4, stages)
+                            ensure.execute()
+                        }
+
+                        connection.prepareStatement(AddMarginalia(
+                            "CreditLedger_updateInUse",
+                            "UPDATE public.delayed_work_credit_use_shards AS credit_use" +
+                                " SET in_use_ms = GREATEST(credit_use.in_use_ms + batch.delta, 0)" +
+                                " FROM unnest(?::VARCHAR[], ?::VARCHAR[], ?::INTEGER[], ?::BIGINT[])" +
+                                " AS batch(job_name, strand_name, stage, delta)" +
+                                " WHERE credit_use.job_name = batch.job_name" +
+                                " AND credit_use.strand_name = batch.strand_name" +
+                                " AND credit_use.stage = batch.stage" +
+                                " AND credit_use.shard = ?"
+                        )).Use { update ->
+                            update.setArray(1, jobNames)
+                            update.setArray(2, strands)
+                            update.setArray(3, stages)
+                            update.setArray(4, connection.createArrayOf("BIGINT", inUse.map { it.second.inUseDelta }.toTypedArray()))
+                            update.setInt(5, shard)
+                            update.execute()
+                        }
+                    }
+
+                    val finished = changed.filter { it.second.finishedJobs != 0L }
+                    if (finished.isNotEmpty()) {
+                        // The stored weight is decayed for the time since it was last averaged, before the new runs are
+                        // mixed in. rolling_average_seconds is kept up to date for anything still reading it.
+                        val decayed = "power(0.5, EXTRACT(EPOCH FROM (current_timestamp - delayed_work_credits.averaged_at)) / ?)"
+                        connection.prepareStatement(AddMarginalia(
+                            "CreditLedger_mergeAverages",
+                            "INSERT INTO public.delayed_work_credits" +
+                                " (job_name, strand_name, stage, rolling_average_seconds, total_jobs, average_ms, average_weight, averaged_at)" +
+                                " SELECT job_name, strand_name, stage, ROUND(total_ms / jobs / 1000), jobs," +
+                                " total_ms::DOUBLE PRECISION / jobs, jobs, current_timestamp" +
+                                " FROM unnest(?::VARCHAR[], ?::VARCHAR[], ?::INTEGER[], ?::BIGINT[], ?::BIGINT[])" +
+                                " AS batch(job_name, strand_name, stage, total_ms, jobs)" +
+                                " ON CONFLICT (job_name, strand_name, stage) DO UPDATE SET" +
+                                " average_ms = (" +
+                                "delayed_work_credits.average_ms * delayed_work_credits.average_weight * $decayed" +
+                                " + EXCLUDED.average_ms * EXCLUDED.average_weight" +
+                                ") / (delayed_work_credits.average_weight * $decayed + EXCLUDED.average_weight)," +
+                                " average_weight = delayed_work_credits.average_weight * $decayed + EXCLUDED.average_weight," +
+                                " averaged_at = EXCLUDED.averaged_at," +
+                                " rolling_average_seconds = ROUND((" +
+                                "delayed_work_credits.average_ms * delayed_work_credits.average_weight * $decayed" +
+                                " + EXCLUDED.average_ms * EXCLUDED.average_weight" +
+                                ") / (delayed_work_credits.average_weight * $decayed + EXCLUDED.average_weight) / 1000)," +
+                                " total_jobs = delayed_work_credits.total_jobs + EXCLUDED.total_jobs"
+                        )).Use { averages ->
+                            averages.setArray(1, connection.createArrayOf("VARCHAR", finished.map { it.first.jobName }.toTypedArray()))
+                            averages.setArray(2, connection.createArrayOf("VARCHAR", finished.map { it.first.strand }.toTypedArray()))
+                            averages.setArray(3, connection.createArrayOf("INTEGER", finished.map { it.first.stage }.toTypedArray()))
+                            averages.setArray(4, connection.createArrayOf("BIGINT", finished.map { it.second.finishedMillis }.toTypedArray()))
+                            averages.setArray(5, connection.createArrayOf("BIGINT", finished.map { it.second.finishedJobs }.toTypedArray()))
+                            for (idx in 6..10) {
+                                averages.setDouble(idx, HalfLifeSeconds())
+                            }
+                            averages.execute()
+                        }
+                    }
+
+                    true
+                }, true)
+            }
+        }
+    }
+
+    private fun HalfLifeSeconds(): Double = Math.max(halfLife.toMillis(), 1) / 1000.0
+
+    /**
+     * Identifies a row of `delayed_work_credits`, and the rows of `delayed_work_credit_use_shards`.
+     */
+    internal data class CreditKey(val jobName: String, val strand: String, val stage: Int)
+
+    /**
+     * A sum of local changes.
+     */
+    internal data class Pending(val inUseDelta: Long, val finishedMillis: Long, val finishedJobs: Long) {
+        fun Plus(inUse: Long, millis: Long, jobs: Long) = Pending(inUseDelta + inUse, finishedMillis + millis, finishedJobs + jobs)
+        fun Plus(other: Pending) = Plus(other.inUseDelta, other.finishedMillis, other.finishedJobs)
+        fun Minus(other: Pending) = Plus(-other.inUseDelta, -other.finishedMillis, -other.finishedJobs)
+    }
+
+    /**
+     * The cached, and local state of one (job, strand, stage).
+     */
+    internal class Entry {
+        private var fetched: CreditableJobState? = null
+        private var fetchedAt = 0L
+        private var refreshing = false
+
+        // Every local change ever made, written or not.
+        private var local = Pending(0, 0, 0)
+        // Local changes known to be committed.
+        private var written = Pending(0, 0, 0)
+        // Local changes the last read already includes. Everything else in `local` is layered on top of it.
+        private var reflected = Pending(0, 0, 0)
+        // Local changes that haven't been taken by a flush.
+        private var pending = Pending(0, 0, 0)
+
+        @Synchronized
+        fun IsStale(now: Long, ttlNanos: Long): Boolean = fetched == null || now - fetchedAt >= ttlNanos
+
+        /**
+         * Claims the background refresh of a stale entry. Returns false if it's fresh, or already being refreshed.
+         */
+        @Synchronized
+        fun StartRefresh(now: Long, ttlNanos: Long): Boolean {
+            if (refreshing || !IsStale(now, ttlNanos)) {
+                return false
+            }
+            refreshing = true
+            return true
+        }
+
+        @Synchronized
+        fun EndRefresh() {
+            refreshing = false
+        }
+
+        /**
+         * Get the local changes committed so far. Taken before a read, so the read is known to include them.
+         */
+        @Synchronized
+        fun Written(): Pending = written
+
+        /**
+         * Replaces the cached credits with a read.
+         *
+         * @param read
+         *  The credits read from the database.
+         * @param now
+         *  When the read finished.
+         * @param writtenBeforeRead
+         *  What `Written` returned before the read started. Changes in flight, or written since aren't assumed to be in
+         *  the read, so they keep being counted locally until a later read.
+         */
+        @Synchronized
+        fun Refresh(read: CreditableJobState, now: Long, writtenBeforeRead: Pending) {
+            fetched = read
+            fetchedAt = now
+            reflected = writtenBeforeRead
+        }
+
+        @Synchronized
+        fun View(): CreditableJobState {
+            val base = fetched ?: CreditableJobState(0, 0, 0)
+            val sinceFetch = local.Minus(reflected)
+            val weight = base.average_weight + sinceFetch.finishedJobs
+            val average = if (sinceFetch.finishedJobs == 0L) {
+                base.rolling_avg
+            } else {
+                Math.round((base.rolling_avg * base.average_weight + sinceFetch.finishedMillis) / weight)
+            }
+            return CreditableJobState(
+                average,
+                base.total_jobs + sinceFetch.finishedJobs,
+                Math.max(base.in_use + sinceFetch.inUseDelta, 0),
+                weight
+            )
+        }
+
+        @Synchronized
+        fun Acquire(credits: Long): Long {
+            pending = pending.Plus(credits, 0, 0)
+            local = local.Plus(credits, 0, 0)
+            return View().in_use
+        }
+
+        @Synchronized
+        fun Complete(credits: Long, millis: Long) {
+            pending = pending.Plus(-credits, millis, 1)
+            local = local.Plus(-credits, millis, 1)
+        }
+
+        @Synchronized
+        fun TakePending(): Pending? {
+            val taken = pending
+            if (taken.inUseDelta == 0L && taken.finishedJobs == 0L) {
+                return null
+            }
+            pending = Pending(0, 0, 0)
+            return taken
+        }
+
+        @Synchronized
+        fun Restore(unwritten: Pending) {
+            pending = pending.Plus(unwritten)
+        }
+
+        @Synchronized
+        fun Acknowledge(committed: Pending) {
+            written = written.Plus(committed)
+        }
+    }
+
+    companion object {
+        private val connectionManagerLedgers = ConcurrentHashMap<ConnectionManager, CreditLedger>()
+
+        /**
+         * The number of rows credit use is split over, per (job, strand, stage), unless a ledger is given another.
+         */
+        const val DEFAULT_SHARDS = 16
+
+        /**
+         * The run time (in milliseconds) that may be in use at once for one (job, strand, stage).
+         */
+        @JvmStatic
+        @Volatile
+        var BudgetMillis: Long = 3600 * 1000
+
+        internal fun HasBudget(state: CreditableJobState): Boolean =
+            state.in_use == 0L || state.in_use + state.rolling_avg <= BudgetMillis
+
+        /**
+         * Get the shard of credit use a node writes to.
+         *
+         * @param nodeId
+         *  The node's identifier.
+         * @param shards
+         *  The number of shards credit use is split over.
+         */
+        internal fun ShardFor(nodeId: String, shards: Int): Int = Math.floorMod(nodeId.hashCode(), Math.max(shards, 1))
+
+        /**
+         * Configures the ledger used by every `CreditableJob` on a connection manager. Does nothing if a ledger is
+         * already in use for it.
+         *
+         * @param connectionManager
+         *  The connection manager creditable jobs run with.
+         * @param cacheTtl
+         *  How long credits read from the database are trusted for.
+         * @param flushInterval
+         *  How often local changes are written.
+         * @param halfLife
+         *  How long it takes for a run to count half as much towards the average.
+         * @param shards
+         *  The number of rows credit use is split over.
+         * @return
+         *  The ledger now in use for the connection manager.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun Enable(
+            connectionManager: ConnectionManager,
+            cacheTtl: Duration = Duration.ofSeconds(1),
+            flushInterval: Duration = Duration.ofSeconds(1),
+            halfLife: Duration = Duration.ofMinutes(10),
+            shards: Int = DEFAULT_SHARDS
+        ): CreditLedger = connectionManagerLedgers.computeIfAbsent(connectionManager) {
+            CreditLedger(it, cacheTtl, flushInterval, halfLife, shards)
+        }
+
+        /**
+         * Get the ledger for a connection manager, creating one with the default settings if there isn't one yet.
+         */
+        @JvmStatic
+        fun ForConnectionManager(connectionManager: ConnectionManager): CreditLedger = Enable(connectionManager)
+    }
+}
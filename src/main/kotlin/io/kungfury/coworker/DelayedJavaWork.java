@@ -2,6 +2,9 @@ package io.kungfury.coworker;
 
 import io.kungfury.coworker.dbs.ConnectionManager;
 import io.kungfury.coworker.dbs.Marginalia;
+import io.kungfury.coworker.internal.Notifications;
+import io.kungfury.coworker.internal.WorkFailures;
+import io.kungfury.coworker.state.StateCodecs;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
@@ -9,6 +12,8 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
 
 public interface DelayedJavaWork {
     /**
@@ -94,23 +99,31 @@ public interface DelayedJavaWork {
      * </p>
      */
     default void yieldStage(ConnectionManager connectionManager, int stage, Instant runAt) throws Exception {
+        StageTransitionBatcher batcher = StageTransitionBatcher.ForConnectionManager(connectionManager);
+        // A batcher closed since it was looked up turns the yield down, so it's written directly instead.
+        CompletableFuture<Boolean> committed = batcher == null ? null : batcher.TrySubmit(
+            this.getID(), this.getPriority(), this.getStrand(), stage, runAt, this.getSerializedState(), this.getClass().getName()
+        );
+        if (committed != null) {
+            committed.get();
+            return;
+        }
+
         switch (connectionManager.getCONNECTION_TYPE()) {
             case POSTGRES:
                 connectionManager.executeTransaction((connection -> {
-                    try {
-                        PreparedStatement stmt = connection.prepareStatement(Marginalia.INSTANCE.AddMarginalia(
-                            "DelayedJavaWork",
-                            "UPDATE public.delayed_work SET run_at = ?, stage = ?, state = ?, locked_by = NULL WHERE id = ?"
-                        ));
+                    try (PreparedStatement stmt = connection.prepareStatement(Marginalia.INSTANCE.AddMarginalia(
+                        "DelayedJavaWork",
+                        "UPDATE public.delayed_work SET run_at = ?, stage = ?, state = ?, state_bytes = ?, locked_by = NULL, attempts = 0 WHERE id = ?"
+                    ))) {
                         stmt.setTimestamp(1, Timestamp.from(runAt));
                         stmt.setInt(2, stage);
-                        stmt.setString(3, this.getSerializedState());
-                        stmt.setLong(4, this.getID());
+                        StateCodecs.BindState(stmt, 3, 4, this.getSerializedState());
+                        stmt.setLong(5, this.getID());
                         stmt.execute();
 
-                        connection.createStatement().execute(Marginalia.INSTANCE.AddMarginalia(
-                            "DelayedJavaWork_yieldStage_notify",
-                            String.format("NOTIFY workers, '%d;%d;%d;%d;%s'", this.getID(), this.getPriority(), runAt.getEpochSecond(), stage, this.getStrand())
+                        Notifications.NotifyWorkers(connection, "DelayedJavaWork_yieldStage_notify", Collections.singletonList(
+                            Notifications.Event(this.getID(), this.getPriority(), runAt.getEpochSecond(), stage, this.getStrand(), this.getClass().getName())
                         ));
 
                         return true;
@@ -173,6 +186,54 @@ public interface DelayedJavaWork {
         getGarbageHeap().AddJobToCleanupHeap(this.getID());
     }
 
+    /**
+     * Retry the current stage of this piece of work according to it's `RetryPolicy`, or mark it as failed if it has no
+     * policy, or has run out of attempts.
+     *
+     * @param connectionManager
+     *  The postgres connection manager.
+     * @param workName
+     *  The unique name of this piece of work.
+     * @param failedMsg
+     *  The failure message, recorded if the work is failed.
+     * @return
+     *  True if the work was rescheduled, false if it was failed.
+     */
+    default boolean retryOrFailWork(ConnectionManager connectionManager, String workName, String failedMsg) throws Exception {
+        return retryOrFailWork(connectionManager, workName, FailureFingerprints.FromMessage(workName, failedMsg));
+    }
+
+    /**
+     * Retry the current stage of this piece of work according to it's `RetryPolicy`, or mark it as failed if it has no
+     * policy, or has run out of attempts.
+     *
+     * @param connectionManager
+     *  The postgres connection manager.
+     * @param workName
+     *  The unique name of this piece of work.
+     * @param error
+     *  The exception the work failed with, fingerprinted if the work is failed.
+     * @return
+     *  True if the work was rescheduled, false if it was failed.
+     */
+    default boolean retryOrFailWork(ConnectionManager connectionManager, String workName, Throwable error) throws Exception {
+        return retryOrFailWork(connectionManager, workName, FailureFingerprints.FromThrowable(workName, error));
+    }
+
+    /**
+     * Retry the current stage of this piece of work according to it's `RetryPolicy`, or mark it as failed with an
+     * already fingerprinted failure.
+     */
+    default boolean retryOrFailWork(ConnectionManager connectionManager, String workName, FailureFingerprint failure) throws Exception {
+        switch (connectionManager.getCONNECTION_TYPE()) {
+            case POSTGRES:
+                return connectionManager.executeTransaction((connection ->
+                    WorkFailures.RetryOrFail(connection, this.getID(), workName, failure, this.getSerializedState())
+                ), true);
+        }
+        return false;
+    }
+
     /**
      * Mark a piece of work as failed.
      *
@@ -184,33 +245,32 @@ public interface DelayedJavaWork {
      *  The failure message.
      */
     default void failWork(ConnectionManager connectionManager, String workName, String failedMsg) throws Exception {
+        failWork(connectionManager, workName, FailureFingerprints.FromMessage(workName, failedMsg));
+    }
+
+    /**
+     * Mark a piece of work as failed.
+     *
+     * @param connectionManager
+     *  The postgres connection manager.
+     * @param workName
+     *  The unique name of this piece of work.
+     * @param error
+     *  The exception the work failed with.
+     */
+    default void failWork(ConnectionManager connectionManager, String workName, Throwable error) throws Exception {
+        failWork(connectionManager, workName, FailureFingerprints.FromThrowable(workName, error));
+    }
+
+    /**
+     * Mark a piece of work as failed with an already fingerprinted failure.
+     */
+    default void failWork(ConnectionManager connectionManager, String workName, FailureFingerprint failure) throws Exception {
         switch (connectionManager.getCONNECTION_TYPE()) {
             case POSTGRES:
                 connectionManager.executeTransaction((connection -> {
-                    try {
-                        PreparedStatement stmt = connection.prepareStatement(Marginalia.INSTANCE.AddMarginalia(
-                            "DelayedJavaWork_failWorkDelete",
-                            "DELETE FROM public.delayed_work WHERE id = ?"
-                        ));
-                        stmt.setLong(1, this.getID());
-                        stmt.execute();
-
-                        PreparedStatement createFailed = connection.prepareStatement(Marginalia.INSTANCE.AddMarginalia(
-                            "DelayedJavaWork_failWorkCreate",
-                            "INSERT INTO public.failed_work (id, failed_at, stage, work_unique_name, failed_msg, state, run_by) VALUES ( ?, current_timestamp, ? , ?, ?, ?, ? )"
-                        ));
-                        createFailed.setLong(1, this.getID());
-                        createFailed.setInt(2, this.getStage());
-                        createFailed.setString(3, workName);
-                        createFailed.setString(4, failedMsg);
-                        createFailed.setString(5, this.getSerializedState());
-                        createFailed.setString(6, NodeIdentifier.getId());
-                        createFailed.execute();
-
-                        return true;
-                    } catch (SQLException e1) {
-                        throw new UncheckedIOException(new IOException(e1.getNextException()));
-                    }
+                    WorkFailures.Fail(connection, this.getID(), workName, failure, this.getSerializedState());
+                    return true;
                 }), true);
         }
     }
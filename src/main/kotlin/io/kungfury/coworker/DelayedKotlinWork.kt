@@ -3,6 +3,10 @@ package io.kungfury.coworker
 import io.kungfury.coworker.dbs.ConnectionManager
 import io.kungfury.coworker.dbs.ConnectionType
 import io.kungfury.coworker.dbs.Marginalia.AddMarginalia
+import io.kungfury.coworker.dbs.Use
+import io.kungfury.coworker.internal.Notifications
+import io.kungfury.coworker.internal.WorkFailures
+import io.kungfury.coworker.state.StateCodecs
 
 import kotlinx.coroutines.Job
 
@@ -57,25 +61,31 @@ interface DelayedKotlinWork {
     suspend fun yieldStage(connectionManager: ConnectionManager, stage: Int, runAt: Instant = Instant.now()) {
         val stateToSerialize = this.serializeState()
 
+        val batcher = StageTransitionBatcher.ForConnectionManager(connectionManager)
+        // A batcher closed since it was looked up turns the yield down, so it's written directly instead.
+        if (batcher != null && batcher.TrySubmitAndAwait(Id, Priority, Strand, stage, runAt, stateToSerialize, this.javaClass.name)) {
+            return
+        }
+
         when (connectionManager.CONNECTION_TYPE) {
             ConnectionType.POSTGRES -> {
                 connectionManager.executeTransaction({ connection: Connection ->
-                    val statement = connection.prepareStatement(AddMarginalia(
+                    connection.prepareStatement(AddMarginalia(
                         "DelayedKotlinWork_yieldNext",
-                        "UPDATE public.delayed_work SET run_at = ?, stage = ?, state = ?, locked_by = NULL WHERE id = ?"
-                    ))
-                    statement.setTimestamp(1, Timestamp.from(runAt))
-                    statement.setInt(2, stage)
-                    statement.setString(3, stateToSerialize)
-                    statement.setLong(4, this.Id)
-                    statement.execute()
-
-                    connection.createStatement().execute(AddMarginalia(
-                        "DelayedKotlinWork_yieldStage_notify",
-                        String.format("NOTIFY workers, '%s'", "$Id;$Priority;${runAt.epochSecond};$stage;${this.Strand}"))
-                    )
-
-                    true
+                        "UPDATE public.delayed_work SET run_at = ?, stage = ?, state = ?, state_bytes = ?, locked_by = NULL, attempts = 0 WHERE id = ?"
+                    )).Use { statement ->
+                        statement.setTimestamp(1, Timestamp.from(runAt))
+                        statement.setInt(2, stage)
+                        StateCodecs.BindState(statement, 3, 4, stateToSerialize)
+                        statement.setLong(5, this.Id)
+                        statement.execute()
+
+                        Notifications.NotifyWorkers(connection, "DelayedKotlinWork_yieldStage_notify", listOf(
+                            Notifications.Event(Id, Priority, runAt.epochSecond, stage, Strand, this.javaClass.name)
+                        ))
+
+                        true
+                    }
                 }, true)
             }
         }
@@ -119,6 +129,48 @@ interface DelayedKotlinWork {
      */
     suspend fun finishWork() = GarbageHeap.AddJobToCleanupHeap(Id)
 
+    /**
+     * Retry the current stage of this piece of work according to it's `RetryPolicy`, or mark it as failed if it has no
+     * policy, or has run out of attempts.
+     *
+     * @param connectionManager
+     *  The postgres connection manager.
+     * @param workName
+     *  The unique name of this piece of work.
+     * @param failedMsg
+     *  The failure message, recorded if the work is failed.
+     * @return
+     *  True if the work was rescheduled, false if it was failed.
+     */
+    suspend fun retryOrFailWork(connectionManager: ConnectionManager, workName: String, failedMsg: String): Boolean =
+        retryOrFailWork(connectionManager, workName, FailureFingerprints.FromMessage(workName, failedMsg))
+
+    /**
+     * Retry the current stage of this piece of work according to it's `RetryPolicy`, or mark it as failed if it has no
+     * policy, or has run out of attempts.
+     *
+     * @param connectionManager
+     *  The postgres connection manager.
+     * @param workName
+     *  The unique name of this piece of work.
+     * @param error
+     *  The exception the work failed with, fingerprinted if the work is failed.
+     * @return
+     *  True if the work was rescheduled, false if it was failed.
+     */
+    suspend fun retryOrFailWork(connectionManager: ConnectionManager, workName: String, error: Throwable): Boolean =
+        retryOrFailWork(connectionManager, workName, FailureFingerprints.FromThrowable(workName, error))
+
+    private suspend fun retryOrFailWork(connectionManager: ConnectionManager, workName: String, failure: FailureFingerprint): Boolean {
+        return when (connectionManager.CONNECTION_TYPE) {
+            ConnectionType.POSTGRES -> {
+                connectionManager.executeTransaction({ connection: Connection ->
+                    WorkFailures.RetryOrFail(connection, this.Id, workName, failure, this.serializeState())
+                }, true)
+            }
+        }
+    }
+
     /**
      * Mark a piece of work as failed.
      *
@@ -129,29 +181,27 @@ interface DelayedKotlinWork {
      * @param failedMsg
      *  The failure message.
      */
-    suspend fun failWork(connectionManager: ConnectionManager, workName: String, failedMsg: String) {
+    suspend fun failWork(connectionManager: ConnectionManager, workName: String, failedMsg: String) =
+        failWork(connectionManager, workName, FailureFingerprints.FromMessage(workName, failedMsg))
+
+    /**
+     * Mark a piece of work as failed.
+     *
+     * @param connectionManager
+     *  The postgres connection manager.
+     * @param workName
+     *  The unique name of this piece of work.
+     * @param error
+     *  The exception the work failed with.
+     */
+    suspend fun failWork(connectionManager: ConnectionManager, workName: String, error: Throwable) =
+        failWork(connectionManager, workName, FailureFingerprints.FromThrowable(workName, error))
+
+    private suspend fun failWork(connectionManager: ConnectionManager, workName: String, failure: FailureFingerprint) {
         when (connectionManager.CONNECTION_TYPE) {
             ConnectionType.POSTGRES -> {
                 connectionManager.executeTransaction({ connection: Connection ->
-                    val statement = connection.prepareStatement(AddMarginalia(
-                        "DelayedKotlinWork_failWorkDelete",
-                        "DELETE FROM public.delayed_work WHERE id = ?"
-                    ))
-                    statement.setLong(1, this.Id)
-                    statement.execute()
-
-                    val createFailed = connection.prepareStatement(AddMarginalia(
-                        "DelayedKotlinWork_failWorkCreate",
-                        "INSERT INTO public.failed_work (id, failed_at, stage, work_unique_name, failed_msg, state, run_by) VALUES ( ?, current_timestamp, ?, ?, ?, ?, ? )"
-                    ))
-                    createFailed.setLong(1, this.Id)
-                    createFailed.setInt(2, this.Stage)
-                    createFailed.setString(3, workName)
-                    createFailed.setString(4, failedMsg)
-                    createFailed.setString(5, this.serializeState())
-                    createFailed.setString(6, NodeIdentifier.id)
-                    createFailed.execute()
-
+                    WorkFailures.Fail(connection, this.Id, workName, failure, this.serializeState())
                     true
                 }, true)
             }
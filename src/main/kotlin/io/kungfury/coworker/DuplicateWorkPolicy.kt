@@ -0,0 +1,24 @@
+package io.kungfury.coworker
+
+/**
+ * Describes what should happen when work is inserted with a dedup key that is already queued.
+ *
+ * Dedup keys are only held by work that has not been claimed yet. Once a worker picks up a piece of work its key is
+ * released, so inserting the same key again while the original is running queues a brand new piece of work.
+ */
+enum class DuplicateWorkPolicy {
+    /**
+     * Leave the already queued work untouched, and drop the new insert.
+     */
+    KEEP_EXISTING,
+
+    /**
+     * Replace the state of the already queued work with the state of the new insert.
+     */
+    REPLACE_STATE,
+
+    /**
+     * Keep the queued state, but move the queued work to the more urgent (lower) of the two priorities.
+     */
+    BUMP_PRIORITY
+}
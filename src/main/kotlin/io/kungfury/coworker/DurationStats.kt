@@ -0,0 +1,113 @@
+package io.kungfury.coworker
+
+import java.time.Duration
+
+/**
+ * Time-decayed statistics over how long something takes, in milliseconds.
+ *
+ * Every duration recorded counts with a weight that halves every `halfLife`, so the mean, and percentiles follow
+ * recent behaviour, and old history ages out on it's own. Percentiles come from a histogram with buckets about 19%
+ * apart, so they're accurate to within a bucket.
+ *
+ * @param halfLife
+ *  How long it takes for a recorded duration to count half as much.
+ */
+class DurationStats @JvmOverloads constructor(halfLife: Duration = Duration.ofMinutes(10)) {
+    private val halfLifeNanos = Math.max(halfLife.toNanos(), 1).toDouble()
+    private val buckets = DoubleArray(BUCKETS)
+    private var weight = 0.0
+    private var weightedSum = 0.0
+    private var lastDecay = Long.MIN_VALUE
+
+    /**
+     * Record a duration.
+     *
+     * @param millis
+     *  How long it took.
+     * @param now
+     *  The current `System.nanoTime()`.
+     */
+    @JvmOverloads
+    @Synchronized
+    fun Record(millis: Long, now: Long = System.nanoTime()) {
+        DecayTo(now)
+        val value = Math.max(millis, 0).toDouble()
+        weight += 1.0
+        weightedSum += value
+        buckets[BucketFor(value)] += 1.0
+    }
+
+    /**
+     * The decayed number of durations recorded, i.e. how much recent history there is.
+     */
+    @JvmOverloads
+    @Synchronized
+    fun Weight(now: Long = System.nanoTime()): Double {
+        DecayTo(now)
+        return weight
+    }
+
+    /**
+     * The decayed mean duration in milliseconds, or 0 if nothing has been recorded.
+     */
+    @Synchronized
+    fun Mean(): Double = if (weight <= 0.0) 0.0 else weightedSum / weight
+
+    /**
+     * Estimate a percentile of recent durations.
+     *
+     * @param percentile
+     *  The percentile to get, between 0, and 1 (e.g. 0.95).
+     * @return
+     *  The estimated duration in milliseconds, or 0 if nothing has been recorded.
+     */
+    @Synchronized
+    fun Percentile(percentile: Double): Double {
+        if (weight <= 0.0) {
+            return 0.0
+        }
+        val target = Math.min(Math.max(percentile, 0.0), 1.0) * weight
+        var seen = 0.0
+        for (idx in buckets.indices) {
+            seen += buckets[idx]
+            if (seen >= target && buckets[idx] > 0.0) {
+                return UpperBoundOf(idx)
+            }
+        }
+        return UpperBoundOf(buckets.lastIndex)
+    }
+
+    private fun DecayTo(now: Long) {
+        if (lastDecay == Long.MIN_VALUE) {
+            lastDecay = now
+            return
+        }
+        val elapsed = now - lastDecay
+        if (elapsed <= 0) {
+            return
+        }
+        lastDecay = now
+        val factor = Math.pow(0.5, elapsed / halfLifeNanos)
+        weight *= factor
+        weightedSum *= factor
+        for (idx in buckets.indices) {
+            buckets[idx] *= factor
+        }
+    }
+
+    private companion object {
+        // Four buckets per doubling, up to 2^40ms (about 35 years).
+        const val BUCKETS_PER_DOUBLING = 4
+        const val BUCKETS = 40 * BUCKETS_PER_DOUBLING + 1
+
+        fun BucketFor(millis: Double): Int {
+            if (millis < 1.0) {
+                return 0
+            }
+            val bucket = Math.ceil(Math.log(millis) / Math.log(2.0) * BUCKETS_PER_DOUBLING).toInt()
+            return Math.min(Math.max(bucket, 0), BUCKETS - 1)
+        }
+
+        fun UpperBoundOf(bucket: Int): Double = Math.pow(2.0, bucket.toDouble() / BUCKETS_PER_DOUBLING)
+    }
+}
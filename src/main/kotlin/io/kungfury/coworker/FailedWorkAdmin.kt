@@ -0,0 +1,264 @@
+package io.kungfury.coworker
+
+import io.kungfury.coworker.dbs.ConnectionManager
+import io.kungfury.coworker.dbs.ConnectionType
+import io.kungfury.coworker.dbs.Marginalia.AddMarginalia
+import io.kungfury.coworker.dbs.Use
+import io.kungfury.coworker.internal.Notifications
+
+import kotlinx.coroutines.runBlocking
+
+import java.time.Duration
+
+/**
+ * Bulk operations on `failed_work`, for cleaning up after an outage.
+ *
+ * Every operation works through the matching rows in chunks, each chunk being its own short transaction, and sleeps
+ * between chunks. So replaying a large backlog doesn't hold long locks, or starve live work of the database.
+ * Chunks are claimed with `FOR UPDATE SKIP LOCKED`, so it's safe to run the same operation from many places at once.
+ */
+object FailedWorkAdmin {
+    /**
+     * Count the failed work matching a filter.
+     *
+     * @param connectionManager
+     *  The connection manager.
+     * @param filter
+     *  Which failed work to count.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun Count(connectionManager: ConnectionManager, filter: FailedWorkFilter = FailedWorkFilter()): Long = runBlocking {
+        when (connectionManager.CONNECTION_TYPE) {
+            ConnectionType.POSTGRES -> {
+                connectionManager.executeReadOnly { connection ->
+                    connection.prepareStatement(AddMarginalia(
+                        "FailedWorkAdmin_count",
+                        "SELECT COUNT(*) FROM public.failed_work WHERE ${filter.WhereClause()}"
+                    )).Use { statement ->
+                        filter.Bind(statement, 1)
+                        val rs = statement.executeQuery()
+                        rs.next()
+                        rs.getLong(1)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Move failed work back into `delayed_work` to be run again.
+     *
+     * Work keeps its id, work unique name, strand, stage, and state. Attempts start back at zero.
+     *
+     * @param connectionManager
+     *  The connection manager.
+     * @param filter
+     *  Which failed work to requeue.
+     * @param priority
+     *  The priority to requeue at (failed work doesn't remember its priority).
+     * @param chunkSize
+     *  The most rows to move per transaction.
+     * @param pauseBetweenChunks
+     *  How long to sleep after each chunk.
+     * @return
+     *  The number of pieces of work requeued.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun Requeue(
+        connectionManager: ConnectionManager,
+        filter: FailedWorkFilter = FailedWorkFilter(),
+        priority: Int = 100,
+        chunkSize: Int = 1000,
+        pauseBetweenChunks: Duration = Duration.ofMillis(100)
+    ): Long = InChunks(pauseBetweenChunks) {
+        runBlocking {
+            when (connectionManager.CONNECTION_TYPE) {
+                ConnectionType.POSTGRES -> {
+                    connectionManager.executeTransaction({ connection ->
+                        connection.prepareStatement(AddMarginalia(
+                            "FailedWorkAdmin_requeue",
+                            "WITH chunk AS (" +
+                                "SELECT id FROM public.failed_work WHERE ${filter.WhereClause()}" +
+                                " ORDER BY id LIMIT ? FOR UPDATE SKIP LOCKED" +
+                                "), requeued AS (" +
+                                "DELETE FROM public.failed_work AS failed USING chunk WHERE failed.id = chunk.id" +
+                                " RETURNING failed.id, failed.stage, failed.work_unique_name, failed.strand, failed.state, failed.state_bytes" +
+                                ") INSERT INTO public.delayed_work" +
+                                " (id, created_at, run_at, stage, priority, work_unique_name, strand, state, state_bytes)" +
+                                " SELECT id, current_timestamp, current_timestamp, GREATEST(stage, 1), ?, work_unique_name," +
+                                " COALESCE(strand, 'default'), state, state_bytes FROM requeued" +
+                                " RETURNING id, stage, strand, run_at, work_unique_name"
+                        )).Use { statement ->
+                            val next = filter.Bind(statement, 1)
+                            statement.setInt(next, chunkSize)
+                            statement.setInt(next + 1, priority)
+                            val rs = statement.executeQuery()
+
+                            val events = ArrayList<String>()
+                            while (rs.next()) {
+                                events.add(Notifications.Event(
+                                    rs.getLong("id"),
+                                    priority,
+                                    rs.getTimestamp("run_at").toInstant().epochSecond,
+                                    rs.getInt("stage"),
+                                    rs.getString("strand"),
+                                    rs.getString("work_unique_name")
+                                ))
+                            }
+                            Notifications.NotifyWorkers(connection, "FailedWorkAdmin_requeue_notify", events)
+
+                            events.size
+                        }
+                    }, true)
+                }
+            }
+        }
+    }
+
+    /**
+     * Permanently delete failed work.
+     *
+     * @param connectionManager
+     *  The connection manager.
+     * @param filter
+     *  Which failed work to delete.
+     * @param chunkSize
+     *  The most rows to delete per transaction.
+     * @param pauseBetweenChunks
+     *  How long to sleep after each chunk.
+     * @return
+     *  The number of rows deleted.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun Purge(
+        connectionManager: ConnectionManager,
+        filter: FailedWorkFilter = FailedWorkFilter(),
+        chunkSize: Int = 1000,
+        pauseBetweenChunks: Duration = Duration.ofMillis(100)
+    ): Long = InChunks(pauseBetweenChunks) {
+        runBlocking {
+            when (connectionManager.CONNECTION_TYPE) {
+                ConnectionType.POSTGRES -> {
+                    connectionManager.executeTransaction({ connection ->
+                        connection.prepareStatement(AddMarginalia(
+                            "FailedWorkAdmin_purge",
+                            "DELETE FROM public.failed_work WHERE id IN (" +
+                                "SELECT id FROM public.failed_work WHERE ${filter.WhereClause()}" +
+                                " ORDER BY id LIMIT ? FOR UPDATE SKIP LOCKED" +
+                                ")"
+                        )).Use { statement ->
+                            val next = filter.Bind(statement, 1)
+                            statement.setInt(next, chunkSize)
+                            statement.executeUpdate()
+                        }
+                    }, true)
+                }
+            }
+        }
+    }
+
+    /**
+     * Group failures by fingerprint, most recently seen first.
+     *
+     * @param connectionManager
+     *  The connection manager.
+     * @param limit
+     *  The most groups to return.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun GroupByFingerprint(connectionManager: ConnectionManager, limit: Int = 50): List<FailureGroup> = runBlocking {
+        when (connectionManager.CONNECTION_TYPE) {
+            ConnectionType.POSTGRES -> {
+                connectionManager.executeReadOnly { connection ->
+                    connection.prepareStatement(AddMarginalia(
+                        "FailedWorkAdmin_groupByFingerprint",
+                        "SELECT" +
+                            " fingerprints.fingerprint," +
+                            " fingerprints.work_unique_name," +
+                            " fingerprints.exception_type," +
+                            " fingerprints.summary," +
+                            " fingerprints.occurrences," +
+                            " fingerprints.first_seen," +
+                            " fingerprints.last_seen," +
+                            " (SELECT COUNT(*) FROM public.failed_work WHERE failed_work.fingerprint = fingerprints.fingerprint) AS currently_failed" +
+                            " FROM public.failure_fingerprints AS fingerprints" +
+                            " ORDER BY fingerprints.last_seen DESC LIMIT ?"
+                    )).Use { statement ->
+                        statement.setInt(1, limit)
+                        val rs = statement.executeQuery()
+
+                        val groups = ArrayList<FailureGroup>()
+                        while (rs.next()) {
+                            groups.add(FailureGroup(
+                                rs.getString("fingerprint"),
+                                rs.getString("work_unique_name"),
+                                rs.getString("exception_type"),
+                                rs.getString("summary") ?: "",
+                                rs.getLong("occurrences"),
+                                rs.getLong("currently_failed"),
+                                rs.getTimestamp("first_seen").toInstant(),
+                                rs.getTimestamp("last_seen").toInstant()
+                            ))
+                        }
+                        groups
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the full traces kept for a fingerprint, oldest first.
+     *
+     * @param connectionManager
+     *  The connection manager.
+     * @param fingerprint
+     *  The fingerprint to get samples of.
+     */
+    @JvmStatic
+    fun SamplesFor(connectionManager: ConnectionManager, fingerprint: String): List<String> = runBlocking {
+        when (connectionManager.CONNECTION_TYPE) {
+            ConnectionType.POSTGRES -> {
+                connectionManager.executeReadOnly { connection ->
+                    connection.prepareStatement(AddMarginalia(
+                        "FailedWorkAdmin_samplesFor",
+                        "SELECT full_trace FROM public.failure_samples WHERE fingerprint = ? ORDER BY id"
+                    )).Use { statement ->
+                        statement.setString(1, fingerprint)
+                        val rs = statement.executeQuery()
+
+                        val samples = ArrayList<String>()
+                        while (rs.next()) {
+                            samples.add(rs.getString("full_trace"))
+                        }
+                        samples
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs chunks until one comes back empty, sleeping between them.
+     *
+     * @return
+     *  The total rows touched by every chunk.
+     */
+    private fun InChunks(pauseBetweenChunks: Duration, chunk: () -> Int): Long {
+        var total = 0L
+        while (true) {
+            val touched = chunk()
+            if (touched == 0) {
+                return total
+            }
+            total += touched
+            if (!pauseBetweenChunks.isZero) {
+                Thread.sleep(pauseBetweenChunks.toMillis())
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package io.kungfury.coworker
+
+import java.sql.PreparedStatement
+import java.sql.Timestamp
+import java.time.Instant
+
+/**
+ * Selects rows of `failed_work` for bulk operations. Every condition that's set must match, unset conditions match
+ * everything.
+ *
+ * @param WorkName
+ *  The exact work unique name.
+ * @param Strand
+ *  The exact strand.
+ * @param FailedAfter
+ *  Only work that failed at, or after this time.
+ * @param FailedBefore
+ *  Only work that failed before this time.
+ * @param MessagePattern
+ *  A SQL `LIKE` pattern the failure message must match, e.g. `%Connection refused%`.
+ * @param Fingerprint
+ *  The exact failure fingerprint.
+ */
+data class FailedWorkFilter @JvmOverloads constructor(
+    val WorkName: String? = null,
+    val Strand: String? = null,
+    val FailedAfter: Instant? = null,
+    val FailedBefore: Instant? = null,
+    val MessagePattern: String? = null,
+    val Fingerprint: String? = null
+) {
+    /**
+     * The SQL conditions for this filter, joined with AND. Always valid to put after a WHERE.
+     */
+    internal fun WhereClause(): String {
+        val conditions = ArrayList<String>()
+        if (WorkName != null) {
+            conditions.add("work_unique_name = ?")
+        }
+        if (Strand != null) {
+            conditions.add("strand = ?")
+        }
+        if (FailedAfter != null) {
+            conditions.add("failed_at >= ?")
+        }
+        if (FailedBefore != null) {
+            conditions.add("failed_at < ?")
+        }
+        if (MessagePattern != null) {
+            conditions.add("failed_msg LIKE ?")
+        }
+        if (Fingerprint != null) {
+            conditions.add("fingerprint = ?")
+        }
+        return if (conditions.isEmpty()) "TRUE" else conditions.joinToString(" AND ")
+    }
+
+    /**
+     * Binds the parameters of `WhereClause`.
+     *
+     * @param statement
+     *  The statement to bind to.
+     * @param startIndex
+     *  The index of the first parameter of the where clause.
+     * @return
+     *  The index of the next parameter after the where clause.
+     */
+    internal fun Bind(statement: PreparedStatement, startIndex: Int): Int {
+        var idx = startIndex
+        if (WorkName != null) {
+            statement.setString(idx++, WorkName)
+        }
+        if (Strand != null) {
+            statement.setString(idx++, Strand)
+        }
+        if (FailedAfter != null) {
+            statement.setTimestamp(idx++, Timestamp.from(FailedAfter))
+        }
+        if (FailedBefore != null) {
+            statement.setTimestamp(idx++, Timestamp.from(FailedBefore))
+        }
+        if (MessagePattern != null) {
+            statement.setString(idx++, MessagePattern)
+        }
+        if (Fingerprint != null) {
+            statement.setString(idx++, Fingerprint)
+        }
+        return idx
+    }
+}
@@ -0,0 +1,121 @@
+package io.kungfury.coworker
+
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.security.MessageDigest
+
+/**
+ * A failure, reduced to what's stored for it.
+ *
+ * @param Fingerprint
+ *  A stable hash of the work unique name, exception type, and top stack frames. Failures with the same fingerprint
+ *  are grouped together.
+ * @param ExceptionType
+ *  The class name of the root cause, or null if the failure was only a message.
+ * @param Summary
+ *  The (truncated) message, and top stack frames. This is what's stored in `failed_work.failed_msg`.
+ * @param FullTrace
+ *  Everything known about the failure. Only stored for the first few failures of each fingerprint.
+ */
+data class FailureFingerprint(
+    val Fingerprint: String,
+    val ExceptionType: String?,
+    val Summary: String,
+    val FullTrace: String
+)
+
+/**
+ * Turns failures into fingerprints, so a failing downstream results in one group with a counter instead of thousands
+ * of copies of the same stack trace.
+ */
+object FailureFingerprints {
+    private val DIGITS = Regex("[0-9]+")
+
+    /**
+     * The number of stack frames (from the top of the root cause) that are part of a fingerprint, and its summary.
+     */
+    @JvmStatic
+    @Volatile
+    var TopFrames: Int = 5
+
+    /**
+     * The longest a failure message can be in a summary, longer messages are truncated.
+     */
+    @JvmStatic
+    @Volatile
+    var MaxMessageLength: Int = 1000
+
+    /**
+     * The number of full traces kept for each fingerprint.
+     */
+    @JvmStatic
+    @Volatile
+    var SampleLimit: Int = 5
+
+    /**
+     * Fingerprint an exception.
+     *
+     * Exceptions are fingerprinted on their root cause's type, and the class/method of its top frames. Line numbers,
+     * and the message are left out, so the same failure keeps the same fingerprint across deploys, and ids in messages.
+     *
+     * @param workName
+     *  The unique name of the work that failed.
+     * @param error
+     *  The exception the work failed with.
+     */
+    @JvmStatic
+    fun FromThrowable(workName: String, error: Throwable): FailureFingerprint {
+        var root = error
+        while (root.cause != null && root.cause !== root) {
+            root = root.cause!!
+        }
+        val type = root.javaClass.name
+        val frames = root.stackTrace.take(TopFrames)
+
+        val fingerprint = Hash(workName, type, *frames.map { "${it.className}.${it.methodName}" }.toTypedArray())
+        val summary = StringBuilder()
+            .append(type)
+            .append(": ")
+            .append(Truncate(root.message ?: ""))
+        frames.forEach { summary.append("\n  at ").append(it) }
+
+        val fullTrace = StringWriter()
+        error.printStackTrace(PrintWriter(fullTrace))
+
+        return FailureFingerprint(fingerprint, type, summary.toString(), fullTrace.toString())
+    }
+
+    /**
+     * Fingerprint a failure that's only described by a message.
+     *
+     * The fingerprint is taken from the first line of the message with every number removed. So messages that only
+     * differ by an id, or a count are grouped together.
+     *
+     * @param workName
+     *  The unique name of the work that failed.
+     * @param failedMsg
+     *  The failure message.
+     */
+    @JvmStatic
+    fun FromMessage(workName: String, failedMsg: String): FailureFingerprint {
+        val firstLine = failedMsg.lineSequence().firstOrNull() ?: ""
+        val fingerprint = Hash(workName, DIGITS.replace(firstLine, "#"))
+        return FailureFingerprint(fingerprint, null, Truncate(failedMsg), failedMsg)
+    }
+
+    private fun Truncate(message: String): String = if (message.length > MaxMessageLength) {
+        message.substring(0, MaxMessageLength) + "... (truncated)"
+    } else {
+        message
+    }
+
+    private fun Hash(vararg parts: String): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        for (part in parts) {
+            digest.update(part.toByteArray(Charsets.UTF_8))
+            digest.update(0)
+        }
+        // Half of a sha-256 is plenty to keep fingerprints apart.
+        return digest.digest().take(16).joinToString("") { String.format("%02x", it) }
+    }
+}
@@ -0,0 +1,34 @@
+package io.kungfury.coworker
+
+import java.time.Instant
+
+/**
+ * Every failure sharing a fingerprint.
+ *
+ * @param Fingerprint
+ *  The fingerprint shared by the failures.
+ * @param WorkName
+ *  The unique name of the work that failed.
+ * @param ExceptionType
+ *  The class name of the root cause, or null if the failures were only messages.
+ * @param Summary
+ *  The summary of the first failure with this fingerprint.
+ * @param Occurrences
+ *  The number of times work has failed with this fingerprint, ever.
+ * @param CurrentlyFailed
+ *  The number of pieces of work with this fingerprint still in `failed_work`.
+ * @param FirstSeen
+ *  When work first failed with this fingerprint.
+ * @param LastSeen
+ *  When work last failed with this fingerprint.
+ */
+data class FailureGroup(
+    val Fingerprint: String,
+    val WorkName: String?,
+    val ExceptionType: String?,
+    val Summary: String,
+    val Occurrences: Long,
+    val CurrentlyFailed: Long,
+    val FirstSeen: Instant,
+    val LastSeen: Instant
+)
@@ -0,0 +1,28 @@
+package io.kungfury.coworker
+
+/**
+ * Declares the retry policy for a job class.
+ *
+ * When a stage of a job annotated with `@Retry` fails, instead of being moved to `failed_work` it's rescheduled on the
+ * same row with exponential backoff, until it has failed `maxAttempts` times in a row.
+ *
+ * @param maxAttempts
+ *  The total number of times a stage may be attempted before the work is failed.
+ * @param initialBackoffMs
+ *  How long to wait before the first retry.
+ * @param maxBackoffMs
+ *  The longest to ever wait between retries.
+ * @param multiplier
+ *  How much the backoff grows by after each failure.
+ * @param jitter
+ *  The fraction (0 to 1) the backoff is randomly moved up or down by, so retries don't all land at once.
+ */
+@Target(AnnotationTarget.CLASS)
+@Retention(AnnotationRetention.RUNTIME)
+annotation class Retry(
+    val maxAttempts: Int,
+    val initialBackoffMs: Long = 1000,
+    val maxBackoffMs: Long = 300000,
+    val multiplier: Double = 2.0,
+    val jitter: Double = 0.2
+)
@@ -0,0 +1,67 @@
+package io.kungfury.coworker
+
+import java.util.Optional
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * The registry of retry policies, keyed by work unique name.
+ *
+ * A policy is looked up in order from: one registered explicitly with `Register`, the `@Retry` annotation on the job
+ * class, and finally `Default`. Work with no policy is failed the first time it fails, like it always has been.
+ */
+object RetryPolicies {
+    private val registered = ConcurrentHashMap<String, RetryPolicy>()
+    private val annotated = ConcurrentHashMap<String, Optional<RetryPolicy>>()
+
+    /**
+     * The policy for work that doesn't have one of it's own. Defaults to null, failing immediately.
+     */
+    @JvmStatic
+    @Volatile
+    var Default: RetryPolicy? = null
+
+    /**
+     * Register a policy for a piece of work, overriding any `@Retry` annotation.
+     *
+     * @param workName
+     *  The work unique name (the fully qualified class name) to register the policy for.
+     * @param policy
+     *  The policy to use.
+     */
+    @JvmStatic
+    fun Register(workName: String, policy: RetryPolicy) {
+        registered[workName] = policy
+    }
+
+    /**
+     * Remove an explicitly registered policy.
+     */
+    @JvmStatic
+    fun Unregister(workName: String) {
+        registered.remove(workName)
+    }
+
+    /**
+     * Get the retry policy for a piece of work.
+     *
+     * @param workName
+     *  The work unique name.
+     * @return
+     *  The policy, or null if the work should fail immediately.
+     */
+    @JvmStatic
+    fun ForWork(workName: String): RetryPolicy? {
+        val explicit = registered[workName]
+        if (explicit != null) {
+            return explicit
+        }
+        return annotated.computeIfAbsent(workName) { name ->
+            val retry = try {
+                Class.forName(name).getAnnotation(Retry::class.java)
+            } catch (err: ClassNotFoundException) {
+                null
+            }
+            Optional.ofNullable(retry?.let { RetryPolicy.FromAnnotation(it) })
+        }.orElse(Default)
+    }
+}
@@ -0,0 +1,68 @@
+package io.kungfury.coworker
+
+import java.time.Duration
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * How a failing piece of work should be retried.
+ *
+ * @param MaxAttempts
+ *  The total number of times a stage may be attempted before the work is failed.
+ * @param InitialBackoff
+ *  How long to wait before the first retry.
+ * @param MaxBackoff
+ *  The longest to ever wait between retries.
+ * @param Multiplier
+ *  How much the backoff grows by after each failure.
+ * @param Jitter
+ *  The fraction (0 to 1) the backoff is randomly moved up or down by.
+ */
+data class RetryPolicy @JvmOverloads constructor(
+    val MaxAttempts: Int,
+    val InitialBackoff: Duration = Duration.ofSeconds(1),
+    val MaxBackoff: Duration = Duration.ofMinutes(5),
+    val Multiplier: Double = 2.0,
+    val Jitter: Double = 0.2
+) {
+    init {
+        require(MaxAttempts >= 1) { "A retry policy needs at least one attempt." }
+        require(Multiplier >= 1.0) { "A retry policy's multiplier can't shrink the backoff." }
+        require(Jitter in 0.0..1.0) { "A retry policy's jitter must be between 0, and 1." }
+    }
+
+    /**
+     * If a stage that has failed `attempts` times should be tried again.
+     */
+    fun ShouldRetry(attempts: Int): Boolean = attempts < MaxAttempts
+
+    /**
+     * Get how long to wait before the next attempt.
+     *
+     * @param attempts
+     *  The number of times the stage has failed, including the failure being handled. Starts at 1.
+     * @param random
+     *  A number between 0, and 1 used to apply jitter.
+     */
+    @JvmOverloads
+    fun BackoffFor(attempts: Int, random: Double = ThreadLocalRandom.current().nextDouble()): Duration {
+        val initialMs = InitialBackoff.toMillis().toDouble()
+        val maxMs = MaxBackoff.toMillis().toDouble()
+        val uncapped = initialMs * Math.pow(Multiplier, (Math.max(attempts, 1) - 1).toDouble())
+        val withJitter = Math.min(uncapped, maxMs) * (1.0 - Jitter + 2.0 * Jitter * random)
+        return Duration.ofMillis(Math.min(withJitter, maxMs).toLong())
+    }
+
+    companion object {
+        /**
+         * Build a policy from a `@Retry` annotation.
+         */
+        @JvmStatic
+        fun FromAnnotation(retry: Retry): RetryPolicy = RetryPolicy(
+            retry.maxAttempts,
+            Duration.ofMillis(retry.initialBackoffMs),
+            Duration.ofMillis(retry.maxBackoffMs),
+            retry.multiplier,
+            retry.jitter
+        )
+    }
+}
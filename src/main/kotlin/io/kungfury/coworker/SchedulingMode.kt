@@ -0,0 +1,17 @@
+package io.kungfury.coworker
+
+/**
+ * How a `CoworkerManager` picks which work to claim next.
+ */
+enum class SchedulingMode {
+    /**
+     * Claim by artificial priority (priority, plus how long the work has been queued) across every strand.
+     */
+    PRIORITY,
+
+    /**
+     * Interleave claims across strands by their weights (`getStrandWeights`), ordering by artificial priority only
+     * within a strand. So a strand with a huge backlog only gets it's share of workers.
+     */
+    FAIR
+}
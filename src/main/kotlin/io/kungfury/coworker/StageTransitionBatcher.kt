@@ -0,0 +1,324 @@
+package io.kungfury.coworker
+
+import io.kungfury.coworker.dbs.ConnectionManager
+import io.kungfury.coworker.dbs.ConnectionType
+import io.kungfury.coworker.dbs.Marginalia.AddMarginalia
+import io.kungfury.coworker.dbs.Use
+import io.kungfury.coworker.internal.Notifications
+import io.kungfury.coworker.state.StateCodecs
+
+import io.micrometer.core.instrument.DistributionSummary
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Metrics
+import kotlinx.coroutines.runBlocking
+
+import org.slf4j.LoggerFactory
+
+import java.sql.Timestamp
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.thread
+import kotlin.concurrent.withLock
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+import kotlin.coroutines.suspendCoroutine
+
+/**
+ * Collects `yieldStage` calls from every in-flight job, and writes them in batches.
+ *
+ * Without a batcher every `yieldStage` opens it's own transaction for an UPDATE, and a NOTIFY. With one, stage
+ * transitions are collected for up to `window`, and then applied with a single `UPDATE ... FROM unnest(...)`, and
+ * a single NOTIFY carrying every transition. Each yielding job still waits until the batch it's in has committed, so
+ * the semantics of `yieldStage` don't change, only how many transactions it takes.
+ *
+ * Batching is opt-in per connection manager:
+ *
+ * ```kotlin
+ * StageTransitionBatcher.Enable(connectionManager, Duration.ofMillis(5))
+ * ```
+ *
+ * @param connectionManager
+ *  The connection manager to write transitions with.
+ * @param window
+ *  How long to collect transitions for after the first one arrives.
+ * @param maxBatchSize
+ *  The most transitions to write in one statement. A full batch is written without waiting out the window.
+ * @param registry
+ *  The metric registry to use. Defaults to the global registry if null.
+ */
+class StageTransitionBatcher(
+    private val connectionManager: ConnectionManager,
+    private val window: Duration,
+    private val maxBatchSize: Int = 500,
+    registry: MeterRegistry? = null
+) {
+    private val logger = LoggerFactory.getLogger(StageTransitionBatcher::class.java)
+    private val metricRegistry: MeterRegistry = registry ?: Metrics.globalRegistry
+
+    private val lock = ReentrantLock()
+    private val hasPending = lock.newCondition()
+    private var pending = ArrayList<Transition>(maxBatchSize)
+
+    @Volatile
+    private var running = true
+
+    private val batchSizes = DistributionSummary.builder("coworker.stage_batch.size")
+        .description("The number of stage transitions written per batch")
+        .register(metricRegistry)
+
+    private val writer = thread(name = "StageTransitionBatcher", isDaemon = true) {
+        while (true) {
+            val batch = takeBatch() ?: break
+            batchSizes.record(batch.size.toDouble())
+            try {
+                writeBatch(batch)
+                batch.forEach { it.committed.complete(true) }
+            } catch (err: Exception) {
+                logger.error("Failed to write batch of ${batch.size} stage transitions! Exception: [ $err ].")
+                batch.forEach { it.committed.completeExceptionally(err) }
+            }
+        }
+    }
+
+    /**
+     * Queues a stage transition to be written in the next batch.
+     *
+     * @param id
+     *  The id of the work yielding.
+     * @param priority
+     *  The priority of the work yielding.
+     * @param strand
+     *  The strand of the work yielding.
+     * @param stage
+     *  The stage to yield to.
+     * @param runAt
+     *  The time the next stage shouldn't run before.
+     * @param state
+     *  The serialized state to store.
+     * @param workName
+     *  The work unique name of the work yielding.
+     * @return
+     *  A future that completes once the batch containing this transition has committed.
+     */
+    fun Submit(id: Long, priority: Int, strand: String, stage: Int, runAt: Instant, state: String, workName: String): CompletableFuture<Boolean> =
+        TrySubmit(id, priority, strand, stage, runAt, state, workName)
+            ?: throw IllegalStateException("StageTransitionBatcher has been closed.")
+
+    /**
+     * Queues a stage transition to be written in the next batch, unless the batcher has been closed.
+     *
+     * A yield can look up the batcher just before it's closed, so callers should write the transition themselves when
+     * this returns null, rather than fail the job.
+     *
+     * @return
+     *  A future that completes once the batch containing this transition has committed, or null if the batcher has
+     *  been closed.
+     */
+    fun TrySubmit(id: Long, priority: Int, strand: String, stage: Int, runAt: Instant, state: String, workName: String): CompletableFuture<Boolean>? {
+        val transition = Transition(id, priority, strand, stage, runAt, state, workName, CompletableFuture())
+        lock.withLock {
+            if (!running) {
+                return null
+            }
+            pending.add(transition)
+            if (pending.size == 1 || pending.size >= maxBatchSize) {
+                hasPending.signal()
+            }
+        }
+        return transition.committed
+    }
+
+    /**
+     * Queues a stage transition, and suspends until the batch containing it has committed.
+     */
+    suspend fun SubmitAndAwait(id: Long, priority: Int, strand: String, stage: Int, runAt: Instant, state: String, workName: String) {
+        if (!TrySubmitAndAwait(id, priority, strand, stage, runAt, state, workName)) {
+            throw IllegalStateException("StageTransitionBatcher has been closed.")
+        }
+    }
+
+    /**
+     * Queues a stage transition, and suspends until the batch containing it has committed.
+     *
+     * @return
+     *  False, without waiting, if the batcher has been closed and the caller has to write the transition itself.
+     */
+    suspend fun TrySubmitAndAwait(id: Long, priority: Int, strand: String, stage: Int, runAt: Instant, state: String, workName: String): Boolean {
+        val committed = TrySubmit(id, priority, strand, stage, runAt, state, workName) ?: return false
+        suspendCoroutine<Unit> { continuation ->
+            committed.whenComplete { _, err ->
+                if (err == null) {
+                    continuation.resume(Unit)
+                } else {
+                    continuation.resumeWithException(err)
+                }
+            }
+        }
+        return true
+    }
+
+    /**
+     * Stops batching, after writing anything that's already been submitted.
+     *
+     * The batcher is unregistered first, so new yields write on their own while the last batches drain.
+     */
+    fun Close() {
+        connectionManagerBatchers.remove(connectionManager, this)
+        lock.withLock {
+            running = false
+            hasPending.signal()
+        }
+        writer.join()
+    }
+
+    /**
+     * Waits for the first transition to arrive, and then for either the window to pass, or the batch to fill up.
+     *
+     * @return
+     *  The transitions to write, or null once the batcher is closed and everything has been written.
+     */
+    private fun takeBatch(): List<Transition>? {
+        lock.withLock {
+            while (pending.isEmpty() && running) {
+                hasPending.await()
+            }
+
+            var remaining = window.toNanos()
+            while (remaining > 0 && pending.size < maxBatchSize && running) {
+                remaining = hasPending.awaitNanos(remaining)
+            }
+
+            if (pending.isEmpty()) {
+                return null
+            }
+
+            if (pending.size <= maxBatchSize) {
+                val batch = pending
+                pending = ArrayList(maxBatchSize)
+                return batch
+            }
+            val batch = ArrayList(pending.subList(0, maxBatchSize))
+            pending = ArrayList(pending.subList(maxBatchSize, pending.size))
+            return batch
+        }
+    }
+
+    private fun writeBatch(batch: List<Transition>) = runBlocking {
+        when (connectionManager.CONNECTION_TYPE) {
+            ConnectionType.POSTGRES -> {
+                connectionManager.executeTransaction({ connection ->
+                    connection.prepareStatement(AddMarginalia(
+                        "StageTransitionBatcher_writeBatch",
+                        "UPDATE public.delayed_work AS work SET" +
+                            " run_at = batch.run_at," +
+                            " stage = batch.stage," +
+                            " state = batch.state," +
+                            " state_bytes = decode(batch.state_bytes, 'hex')," +
+                            " locked_by = NULL," +
+                            " attempts = 0" +
+                            " FROM unnest(?::BIGINT[], ?::TIMESTAMP[], ?::INTEGER[], ?::TEXT[], ?::TEXT[])" +
+                            " AS batch(id, run_at, stage, state, state_bytes)" +
+                            " WHERE work.id = batch.id"
+                    )).Use { statement ->
+
+                        val states = arrayOfNulls<String>(batch.size)
+                        val stateBytes = arrayOfNulls<String>(batch.size)
+                        batch.forEachIndexed { idx, transition ->
+                            // bytea arrays can't be bound directly, so encoded states are sent as hex, and decoded in the query.
+                            val encoded = StateCodecs.EncodeToBytes(transition.state)
+                            if (encoded == null) {
+                                states[idx] = transition.state
+                            } else {
+                                stateBytes[idx] = ToHex(encoded)
+                            }
+                        }
+
+                        statement.setArray(1, connection.createArrayOf("BIGINT", batch.map { it.id }.toTypedArray()))
+                        statement.setArray(2, connection.createArrayOf("TIMESTAMP", batch.map { Timestamp.from(it.runAt) }.toTypedArray()))
+                        statement.setArray(3, connection.createArrayOf("INTEGER", batch.map { it.stage }.toTypedArray()))
+                        statement.setArray(4, connection.createArrayOf("TEXT", states))
+                        statement.setArray(5, connection.createArrayOf("TEXT", stateBytes))
+                        statement.execute()
+
+                        Notifications.NotifyWorkers(connection, "StageTransitionBatcher_notify", batch.map {
+                            Notifications.Event(it.id, it.priority, it.runAt.epochSecond, it.stage, it.strand, it.workName)
+                        })
+
+                        true
+                    }
+                }, true)
+            }
+        }
+    }
+
+    private data class Transition(
+        val id: Long,
+        val priority: Int,
+        val strand: String,
+        val stage: Int,
+        val runAt: Instant,
+        val state: String,
+        val workName: String,
+        val committed: CompletableFuture<Boolean>
+    )
+
+    companion object {
+        private val connectionManagerBatchers = ConcurrentHashMap<ConnectionManager, StageTransitionBatcher>()
+
+        /**
+         * Turns on batching of `yieldStage` for every job using a connection manager.
+         *
+         * @param connectionManager
+         *  The connection manager jobs are yielding with.
+         * @param window
+         *  How long to collect transitions for before writing them.
+         * @param maxBatchSize
+         *  The most transitions to write in one statement.
+         * @return
+         *  The batcher now in use for the connection manager.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun Enable(
+            connectionManager: ConnectionManager,
+            window: Duration = Duration.ofMillis(5),
+            maxBatchSize: Int = 500,
+            registry: MeterRegistry? = null
+        ): StageTransitionBatcher = connectionManagerBatchers.computeIfAbsent(connectionManager) {
+            StageTransitionBatcher(it, window, maxBatchSize, registry)
+        }
+
+        /**
+         * Turns off batching for a connection manager, writing anything already submitted.
+         */
+        @JvmStatic
+        fun Disable(connectionManager: ConnectionManager) {
+            connectionManagerBatchers[connectionManager]?.Close()
+        }
+
+        /**
+         * Get the batcher for a connection manager.
+         *
+         * @return
+         *  The batcher, or null if batching isn't enabled for this connection manager.
+         */
+        @JvmStatic
+        fun ForConnectionManager(connectionManager: ConnectionManager): StageTransitionBatcher? =
+            connectionManagerBatchers[connectionManager]
+
+        private fun ToHex(bytes: ByteArray): String {
+            val hex = CharArray(bytes.size * 2)
+            bytes.forEachIndexed { idx, byte ->
+                val value = byte.toInt() and 0xFF
+                hex[idx * 2] = HEX_DIGITS[value ushr 4]
+                hex[idx * 2 + 1] = HEX_DIGITS[value and 0x0F]
+            }
+            return String(hex)
+        }
+
+        private val HEX_DIGITS = "0123456789abcdef".toCharArray()
+    }
+}
@@ -12,14 +12,26 @@ class StaticCoworkerConfigurationInput(
     private val failureLimit: Short = 3,
     private val garbageHeapSize: Int = 1000,
     private val cleanupDuration: Duration = Duration.ofSeconds(30),
-    private val checkSleep: Duration = Duration.ofMillis(100)
+    private val checkSleep: Duration = Duration.ofMillis(100),
+    fifoStrands: List<String> = listOf(),
+    private val schedulingMode: SchedulingMode = SchedulingMode.PRIORITY,
+    strandWeights: Map<String, Int> = mapOf()
 ) : CoworkerConfigurationInput {
     private val nstrandMap: Map<Pair<String, Regex>, Int> = nstrand.map { entry ->
         Pair(entry.key, Regex.fromLiteral(entry.key)) to entry.value
     }.toMap()
+    private val fifoStrandList: List<Pair<String, Regex>> = fifoStrands.map { strand ->
+        Pair(strand, Regex.fromLiteral(strand))
+    }
+    private val strandWeightMap: Map<Pair<String, Regex>, Int> = strandWeights.map { entry ->
+        Pair(entry.key, Regex.fromLiteral(entry.key)) to entry.value
+    }.toMap()
 
     override fun getWorkCheckDelay(): TemporalAmount = checkWorkEvery
     override fun getNstrandMap(): Map<Pair<String, Regex>, Int> = nstrandMap
+    override fun getFifoStrands(): List<Pair<String, Regex>> = fifoStrandList
+    override fun getSchedulingMode(): SchedulingMode = schedulingMode
+    override fun getStrandWeights(): Map<Pair<String, Regex>, Int> = strandWeightMap
     override fun getFailureLimit(): Short = failureLimit
     override fun getGarbageMaxSize(): Int = garbageHeapSize
     override fun getCleanDuration(): Duration = cleanupDuration
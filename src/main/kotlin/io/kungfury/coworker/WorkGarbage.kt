@@ -3,15 +3,24 @@ package io.kungfury.coworker
 import io.kungfury.coworker.dbs.ConnectionManager
 import io.kungfury.coworker.dbs.ConnectionType
 import io.kungfury.coworker.dbs.Marginalia
+import io.kungfury.coworker.dbs.Use
+import io.kungfury.coworker.dbs.postgres.QueryClass
+import io.kungfury.coworker.internal.LongStripedSet
+import io.kungfury.coworker.internal.StrandSlots
 
 import io.micrometer.core.instrument.MeterRegistry
 import io.micrometer.core.instrument.Tags
+import io.micrometer.core.instrument.Timer
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.withContext
 
+import org.slf4j.LoggerFactory
+
 import java.time.Duration
 import java.time.Instant
-import java.util.concurrent.locks.ReentrantLock
+import java.util.concurrent.locks.LockSupport
+import kotlin.concurrent.thread
 
 /**
  * WorkGarbage is a landing ground for `finishWork`.
@@ -19,37 +28,73 @@ import java.util.concurrent.locks.ReentrantLock
  * WorkGarbage is meant to act as a buffer for DELETEs in the database. It does this to be nice to your DB.
  * WorkGarbage gets passed into your job, and is what gets called under the hood when you finish a piece of particular
  * work. WorkGarbage is not in the path for fail work.
+ *
+ * Finished ids are flushed by a dedicated thread once either `getGarbageMaxSize` ids are waiting, or
+ * `getCleanDuration` has passed since the last flush. Ids are only dropped from the heap once the DELETE for them has
+ * committed, if it fails the flush is retried with backoff. So `isScheduledForDelete` keeps protecting them from being
+ * re-run until they're really gone.
  */
 class WorkGarbage(config: CoworkerConfigurationInput, metricRegistry: MeterRegistry) {
-    private val lock = ReentrantLock()
+    private val logger = LoggerFactory.getLogger(WorkGarbage::class.java)
+
+    @Volatile
     private var lastCleaned = Instant.now()
     private val cleanupInterval: Duration = config.getCleanDuration()
     private val maxJobs: Int = config.getGarbageMaxSize()
-    private val garbageHeap = ArrayList<Long>(maxJobs)
+    private val chunkSize: Int = Math.max(maxJobs, 1)
+    private val garbageHeap = LongStripedSet(maxJobs)
+
+    @Volatile
+    private var flusher: Thread? = null
+    @Volatile
+    private var running = false
+    @Volatile
+    private var flushRequested = false
 
     private val receivedCleanup = metricRegistry.counter("coworker.garbage.heap.received", Tags.empty())
     private val actuallyCleaned = metricRegistry.counter("coworker.garbage.heap.cleaned", Tags.empty())
+    private val cleanupRuns = metricRegistry.counter("coworker.garbage.heap.runs", Tags.empty())
+    private val flushFailures = metricRegistry.counter("coworker.garbage.flush.failures", Tags.empty())
+    private val flushTimer = Timer.builder("coworker.garbage.flush")
+        .description("The time it takes to delete one chunk of finished work")
+        .register(metricRegistry)
+
+    init {
+        metricRegistry.gauge("coworker.garbage.heap.backlog", Tags.empty(), garbageHeap) { it.size().toDouble() }
+    }
 
     /**
      * Add a job to the cleanup heap.
      */
     fun AddJobToCleanupHeap(id: Long) {
-        lock.lock()
         receivedCleanup.increment()
         garbageHeap.add(id)
-        lock.unlock()
+        if (garbageHeap.size() >= maxJobs) {
+            val toWake = flusher
+            if (toWake != null) {
+                LockSupport.unpark(toWake)
+            }
+        }
     }
 
     /**
-     * Determines if a job id is scheduled for delete.
+     * Flush as soon as possible, instead of waiting for the heap to fill, or `getCleanDuration` to pass.
+     *
+     * Used when other work is waiting on finished work to be deleted, e.g. the next job of a FIFO strand.
      */
-    fun isScheduledForDelete(id: Long): Boolean {
-        lock.lock()
-        val retV = garbageHeap.contains(id)
-        lock.unlock()
-        return retV
+    fun FlushSoon() {
+        flushRequested = true
+        val toWake = flusher
+        if (toWake != null) {
+            LockSupport.unpark(toWake)
+        }
     }
 
+    /**
+     * Determines if a job id is scheduled for delete.
+     */
+    fun isScheduledForDelete(id: Long): Boolean = garbageHeap.contains(id)
+
     /**
      * If we should run a cleanup.
      */
@@ -57,39 +102,128 @@ class WorkGarbage(config: CoworkerConfigurationInput, metricRegistry: MeterRegis
         if (garbageHeap.isEmpty()) {
             return false
         }
-        if (Instant.now().minus(cleanupInterval).isBefore(lastCleaned)) {
+        if (flushRequested) {
+            return true
+        }
+        if (lastCleaned.plus(cleanupInterval).isBefore(Instant.now())) {
             return true
         }
-        if (garbageHeap.size >= maxJobs) {
+        if (garbageHeap.size() >= maxJobs) {
             return true
         }
         return false
     }
 
+    /**
+     * Starts the background thread that flushes finished work. Calling this more than once does nothing.
+     *
+     * @param connectionManager
+     *  The connection manager to delete finished work with.
+     */
+    @Synchronized
+    fun StartFlusher(connectionManager: ConnectionManager) {
+        if (flusher != null) {
+            return
+        }
+        running = true
+        flusher = thread(name = "WorkGarbageFlusher", isDaemon = true) {
+            var backoff = INITIAL_BACKOFF
+            while (running) {
+                if (!ShouldCleanup()) {
+                    // Woken early by `AddJobToCleanupHeap` once the heap is full, or by `FlushSoon`.
+                    LockSupport.parkNanos(cleanupInterval.toNanos())
+                    continue
+                }
+
+                cleanupRuns.increment()
+                backoff = if (flushAll(connectionManager)) {
+                    INITIAL_BACKOFF
+                } else {
+                    val sleepFor = backoff
+                    logger.warn("Failed to flush finished work, retrying in ${sleepFor.toMillis()}ms.")
+                    LockSupport.parkNanos(sleepFor.toNanos())
+                    if (sleepFor.multipliedBy(2) > MAX_BACKOFF) MAX_BACKOFF else sleepFor.multipliedBy(2)
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the background flusher. Any ids not yet flushed stay in the heap.
+     */
+    @Synchronized
+    fun StopFlusher() {
+        val toStop = flusher ?: return
+        running = false
+        LockSupport.unpark(toStop)
+        toStop.join(cleanupInterval.toMillis())
+        flusher = null
+    }
+
     /**
      * Cleanup jobs that have been finished.
+     *
+     * Makes a single attempt at flushing everything currently in the heap. Ids whose delete fails are kept.
      */
     suspend fun Cleanup(connectionManager: ConnectionManager) {
+        cleanupRuns.increment()
+        withContext(Dispatchers.IO) {
+            flushAll(connectionManager)
+        }
+    }
+
+    /**
+     * Deletes everything in the heap in chunks of at most `getGarbageMaxSize` ids.
+     *
+     * @return
+     *  If every chunk was deleted.
+     */
+    private fun flushAll(connectionManager: ConnectionManager): Boolean {
+        flushRequested = false
+        while (true) {
+            val chunk = garbageHeap.snapshot(chunkSize)
+            if (chunk.isEmpty()) {
+                lastCleaned = Instant.now()
+                return true
+            }
+
+            try {
+                flushTimer.recordCallable { deleteChunk(connectionManager, chunk) }
+            } catch (err: Exception) {
+                flushFailures.increment()
+                logger.error("Failed to delete ${chunk.size} finished jobs! Exception: [ $err ].")
+                return false
+            }
+
+            // Only forget the ids once they're really gone.
+            garbageHeap.removeAll(chunk)
+            actuallyCleaned.increment(chunk.size.toDouble())
+        }
+    }
+
+    private fun deleteChunk(connectionManager: ConnectionManager, chunk: LongArray) = runBlocking {
         when (connectionManager.CONNECTION_TYPE) {
             ConnectionType.POSTGRES -> {
-                val array = garbageHeap.toTypedArray()
-                withContext(Dispatchers.IO) {
-                    connectionManager.executeTransaction { connection ->
-                        val statement = connection.prepareStatement(Marginalia.AddMarginalia(
-                            "WorkGarbage_Cleanup",
-                            "DELETE FROM public.delayed_work WHERE id = ANY(?)"
-                        ))
-                        lock.lock()
-                        statement.setArray(1, connection.createArrayOf("BIGINT", array))
-                        garbageHeap.clear()
-                        lock.unlock()
-                        statement.execute()
-                        connection.commit()
-                        lastCleaned = Instant.now()
+                connectionManager.executeTransaction({ connection ->
+                    QueryClass.BACKGROUND.ApplyTo(connection)
+                    val ids = connection.createArrayOf("BIGINT", chunk.toTypedArray())
+                    StrandSlots.LockInOrder(connection, "WorkGarbage_lockStrandSlots", "id = ANY(?)") { statement ->
+                        statement.setArray(1, ids)
                     }
-                }
-                actuallyCleaned.increment(array.size.toDouble())
+                    connection.prepareStatement(Marginalia.AddMarginalia(
+                        "WorkGarbage_Cleanup",
+                        "DELETE FROM public.delayed_work WHERE id = ANY(?)"
+                    )).Use { statement ->
+                        statement.setArray(1, ids)
+                        statement.executeUpdate()
+                    }
+                }, true)
             }
         }
     }
+
+    private companion object {
+        val INITIAL_BACKOFF: Duration = Duration.ofMillis(100)
+        val MAX_BACKOFF: Duration = Duration.ofSeconds(30)
+    }
 }
@@ -5,9 +5,11 @@ import com.jsoniter.output.JsonStream
 import io.kungfury.coworker.dbs.ConnectionManager
 import io.kungfury.coworker.dbs.ConnectionType
 import io.kungfury.coworker.dbs.Marginalia
-import io.kungfury.coworker.dbs.TextSafety
+import io.kungfury.coworker.dbs.Use
+import io.kungfury.coworker.internal.Notifications
 import io.kungfury.coworker.internal.states.DelayedLambdaState
 import io.kungfury.coworker.internal.states.HandleAsyncFunctorState
+import io.kungfury.coworker.state.StateCodecs
 import kotlinx.coroutines.Dispatchers
 
 import kotlinx.coroutines.runBlocking
@@ -16,7 +18,9 @@ import kotlinx.coroutines.withContext
 import java.io.ByteArrayOutputStream
 import java.io.ObjectOutputStream
 import java.io.Serializable
+import java.sql.Connection
 import java.sql.Timestamp
+import java.time.Duration
 import java.time.Instant
 
 object WorkInserter {
@@ -49,32 +53,312 @@ object WorkInserter {
             when (connectionManager.CONNECTION_TYPE) {
                 ConnectionType.POSTGRES -> {
                     connectionManager.executeTransaction({ connection ->
-                        val purifiedStrand = TextSafety.EnforceStringPurity(strand, true)
-                        val statement = connection.prepareStatement(Marginalia.AddMarginalia(
-                            "WorkInserter_InsertWork",
-                            "INSERT INTO public.delayed_work (created_at, run_at, stage, strand, priority, work_unique_name, state) VALUES (current_timestamp, ?, 1, ?, ?, ?, ?) RETURNING id"
-                        ))
-                        statement.setTimestamp(1, Timestamp.from(runAt))
-                        statement.setString(2, strand)
-                        statement.setInt(3, priority)
-                        statement.setString(4, workName)
-                        statement.setString(5, workState)
-                        val rs = statement.executeQuery()
-                        rs.next()
-                        val id = rs.getLong(1)
-
-                        connection.createStatement().execute(Marginalia.AddMarginalia(
-                            "WorkInserter_Notify",
-                            String.format("NOTIFY workers, '%s'", "$id;$priority;${runAt.epochSecond};1;$purifiedStrand")
-                        ))
-
-                        id
+                        InsertWork(connection, workName, workState, strand, runAt, priority)
                     }, true)
                 }
             }
         }
     }
 
+    /**
+     * Inserts a piece of work into the DB using a connection the caller already has open.
+     *
+     * The job row, and it's notification are written inside of the callers current transaction, so the work
+     * only becomes visible (and workers are only notified) when the caller commits. Nothing is committed, or
+     * rolled back here.
+     *
+     * @param connection
+     *  The open postgres connection (with a transaction in progress) to insert with.
+     * @param workName
+     *  The name of the work to insert. This should be the name of the class relative to the "work" package.
+     * @param workState
+     *  The state of the work to queue with.
+     * @param strand
+     *  The strand this pice of work is in.
+     * @param runAt
+     *  The instant to run the piece of work at.
+     * @param priority
+     *  The priority of this piece of work. Defaults to 100.
+     */
+    @JvmStatic
+    fun InsertWork(
+        connection: Connection,
+        workName: String,
+        workState: String,
+        strand: String = "default",
+        runAt: Instant = Instant.now(),
+        priority: Int = 100
+    ): Long {
+        val id = connection.prepareStatement(Marginalia.AddMarginalia(
+            "WorkInserter_InsertWork",
+            "INSERT INTO public.delayed_work (created_at, run_at, stage, strand, priority, work_unique_name, state, state_bytes) VALUES (current_timestamp, ?, 1, ?, ?, ?, ?, ?) RETURNING id"
+        )).Use { statement ->
+            statement.setTimestamp(1, Timestamp.from(runAt))
+            statement.setString(2, strand)
+            statement.setInt(3, priority)
+            statement.setString(4, workName)
+            StateCodecs.BindState(statement, 5, 6, workState)
+            val rs = statement.executeQuery()
+            rs.next()
+            rs.getLong(1)
+        }
+
+        Notifications.NotifyWorkers(connection, "WorkInserter_Notify", listOf(
+            Notifications.Event(id, priority, runAt.epochSecond, 1, strand, workName)
+        ))
+
+        return id
+    }
+
+    /**
+     * Inserts a piece of work into the DB, collapsing it into any unclaimed work queued with the same dedup key.
+     *
+     * @param connectionManager
+     *  The connection manager to use.
+     * @param workName
+     *  The name of the work to insert. This should be the name of the class relative to the "work" package.
+     * @param workState
+     *  The state of the work to queue with.
+     * @param dedupKey
+     *  The key that identifies this logical piece of work. Only one unclaimed piece of work may hold a key.
+     * @param onDuplicate
+     *  What to do with the already queued work if the key is taken. Defaults to keeping the existing work.
+     * @param strand
+     *  The strand this pice of work is in.
+     * @param runAt
+     *  The instant to run the piece of work at.
+     * @param priority
+     *  The priority of this piece of work. Defaults to 100.
+     * @return
+     *  The id of the work that now holds the dedup key (either newly inserted, or the existing one).
+     */
+    @JvmStatic
+    fun InsertUniqueWork(
+        connectionManager: ConnectionManager,
+        workName: String,
+        workState: String,
+        dedupKey: String,
+        onDuplicate: DuplicateWorkPolicy = DuplicateWorkPolicy.KEEP_EXISTING,
+        strand: String = "default",
+        runAt: Instant = Instant.now(),
+        priority: Int = 100
+    ): Long {
+        return runBlocking {
+            when (connectionManager.CONNECTION_TYPE) {
+                ConnectionType.POSTGRES -> {
+                    connectionManager.executeTransaction({ connection ->
+                        InsertUniqueWork(connection, workName, workState, dedupKey, onDuplicate, strand, runAt, priority)
+                    }, true)
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserts a piece of work with a dedup key using a connection the caller already has open.
+     *
+     * This writes inside of the callers transaction, and never commits. See the ConnectionManager variant for
+     * details on the parameters.
+     *
+     * @throws IllegalStateException
+     *  If the key is still held by work that can't be found, or replaced after trying twice.
+     */
+    @JvmStatic
+    fun InsertUniqueWork(
+        connection: Connection,
+        workName: String,
+        workState: String,
+        dedupKey: String,
+        onDuplicate: DuplicateWorkPolicy = DuplicateWorkPolicy.KEEP_EXISTING,
+        strand: String = "default",
+        runAt: Instant = Instant.now(),
+        priority: Int = 100
+    ): Long = InsertUniqueWork(connection, workName, workState, dedupKey, onDuplicate, strand, runAt, priority, false)
+
+    private fun InsertUniqueWork(
+        connection: Connection,
+        workName: String,
+        workState: String,
+        dedupKey: String,
+        onDuplicate: DuplicateWorkPolicy,
+        strand: String,
+        runAt: Instant,
+        priority: Int,
+        isRetry: Boolean
+    ): Long {
+        val conflictClause = when (onDuplicate) {
+            DuplicateWorkPolicy.KEEP_EXISTING -> "DO NOTHING"
+            DuplicateWorkPolicy.REPLACE_STATE -> "DO UPDATE SET state = EXCLUDED.state, state_bytes = EXCLUDED.state_bytes WHERE delayed_work.locked_by IS NULL"
+            DuplicateWorkPolicy.BUMP_PRIORITY -> "DO UPDATE SET priority = LEAST(delayed_work.priority, EXCLUDED.priority) WHERE delayed_work.locked_by IS NULL"
+        }
+        val insertedId = connection.prepareStatement(Marginalia.AddMarginalia(
+            "WorkInserter_InsertUniqueWork_$onDuplicate",
+            "INSERT INTO public.delayed_work (created_at, run_at, stage, strand, priority, work_unique_name, state, state_bytes, dedup_key) VALUES (current_timestamp, ?, 1, ?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT (dedup_key) WHERE dedup_key IS NOT NULL $conflictClause " +
+                "RETURNING id, priority, COALESCE(run_at, created_at) AS queued_at, stage, strand, (xmax = 0) AS inserted"
+        )).Use { statement ->
+            statement.setTimestamp(1, Timestamp.from(runAt))
+            statement.setString(2, strand)
+            statement.setInt(3, priority)
+            statement.setString(4, workName)
+            StateCodecs.BindState(statement, 5, 6, workState)
+            statement.setString(7, dedupKey)
+
+            val rs = statement.executeQuery()
+            if (!rs.next()) {
+                return@Use null
+            }
+            val id = rs.getLong("id")
+            if (rs.getBoolean("inserted") || onDuplicate == DuplicateWorkPolicy.BUMP_PRIORITY) {
+                val queuedAt = rs.getTimestamp("queued_at").toInstant().epochSecond
+                Notifications.NotifyWorkers(connection, "WorkInserter_UniqueNotify", listOf(
+                    Notifications.Event(id, rs.getInt("priority"), queuedAt, rs.getInt("stage"), rs.getString("strand"), workName)
+                ))
+            }
+            id
+        }
+        if (insertedId != null) {
+            return insertedId
+        }
+
+        // The key is held by queued work we decided to leave alone. Hand back whoever holds it.
+        val existingId = connection.prepareStatement(Marginalia.AddMarginalia(
+            "WorkInserter_SelectDedupHolder",
+            "SELECT id FROM public.delayed_work WHERE dedup_key = ?"
+        )).Use { existing ->
+            existing.setString(1, dedupKey)
+            val existingRs = existing.executeQuery()
+            if (existingRs.next()) existingRs.getLong("id") else null
+        }
+        if (existingId != null) {
+            return existingId
+        }
+
+        // The holder was claimed in between our insert, and our select freeing up the key. Try once more.
+        if (isRetry) {
+            throw IllegalStateException("Dedup key [ $dedupKey ] is still held by work that can't be replaced, or found.")
+        }
+        return InsertUniqueWork(connection, workName, workState, dedupKey, onDuplicate, strand, runAt, priority, true)
+    }
+
+    /**
+     * Inserts a piece of work that coalesces with any unclaimed work queued under the same coalesce key.
+     *
+     * The first insert for a key opens a debounce window, and queues the work to run once it closes. Every insert
+     * for that key while the work is still unclaimed replaces its state in place instead of adding a new row, and
+     * pushes the run time back to `runAt + debounce`. So the work only runs once inserts for the key have been quiet
+     * for a whole window, with the latest state. Once a worker claims the work the next insert opens a new window.
+     *
+     * @param connectionManager
+     *  The connection manager to use.
+     * @param workName
+     *  The name of the work to insert. This should be the name of the class relative to the "work" package.
+     * @param workState
+     *  The state of the work to queue with.
+     * @param debounce
+     *  How long after the first insert for a key the work should run.
+     * @param coalesceKey
+     *  The key to coalesce on. Defaults to the work name, and strand.
+     * @param strand
+     *  The strand this pice of work is in.
+     * @param runAt
+     *  The instant the debounce window starts at.
+     * @param priority
+     *  The priority of this piece of work. Defaults to 100.
+     * @return
+     *  The id of the work the insert was coalesced into.
+     * @throws IllegalStateException
+     *  If the key is still held by claimed work after retrying once.
+     */
+    @JvmStatic
+    fun InsertCoalescedWork(
+        connectionManager: ConnectionManager,
+        workName: String,
+        workState: String,
+        debounce: Duration,
+        coalesceKey: String? = null,
+        strand: String = "default",
+        runAt: Instant = Instant.now(),
+        priority: Int = 100
+    ): Long {
+        return runBlocking {
+            when (connectionManager.CONNECTION_TYPE) {
+                ConnectionType.POSTGRES -> {
+                    connectionManager.executeTransaction({ connection ->
+                        InsertCoalescedWork(connection, workName, workState, debounce, coalesceKey, strand, runAt, priority)
+                    }, true)
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserts a coalescing piece of work using a connection the caller already has open.
+     *
+     * This writes inside of the callers transaction, and never commits. See the ConnectionManager variant for
+     * details on the parameters.
+     */
+    @JvmStatic
+    fun InsertCoalescedWork(
+        connection: Connection,
+        workName: String,
+        workState: String,
+        debounce: Duration,
+        coalesceKey: String? = null,
+        strand: String = "default",
+        runAt: Instant = Instant.now(),
+        priority: Int = 100
+    ): Long {
+        val key = coalesceKey ?: "$workName:$strand"
+        val runAtWithDebounce = runAt.plus(debounce)
+
+        // One retry is enough: a claim clears the dedup key, so the second insert opens a new window. Work claimed by
+        // a node that doesn't clear the key (e.g. an older version mid deploy) would otherwise spin forever.
+        for (attempt in 1..2) {
+            // Every coalesced insert pushes the run_at of the open window back to it's own debounce, never earlier.
+            val coalescedId = connection.prepareStatement(Marginalia.AddMarginalia(
+                "WorkInserter_InsertCoalescedWork",
+                "INSERT INTO public.delayed_work (created_at, run_at, stage, strand, priority, work_unique_name, state, state_bytes, dedup_key) VALUES (current_timestamp, ?, 1, ?, ?, ?, ?, ?, ?) " +
+                    "ON CONFLICT (dedup_key) WHERE dedup_key IS NOT NULL DO UPDATE SET " +
+                    "state = EXCLUDED.state, state_bytes = EXCLUDED.state_bytes, run_at = GREATEST(delayed_work.run_at, EXCLUDED.run_at) WHERE delayed_work.locked_by IS NULL " +
+                    "RETURNING id, priority, stage, strand, run_at, (xmax = 0) AS inserted, (run_at = ?) AS moved"
+            )).Use { statement ->
+                statement.setTimestamp(1, Timestamp.from(runAtWithDebounce))
+                statement.setString(2, strand)
+                statement.setInt(3, priority)
+                statement.setString(4, workName)
+                StateCodecs.BindState(statement, 5, 6, workState)
+                statement.setString(7, key)
+                statement.setTimestamp(8, Timestamp.from(runAtWithDebounce))
+
+                val rs = statement.executeQuery()
+                if (!rs.next()) {
+                    return@Use null
+                }
+
+                val id = rs.getLong("id")
+                // Workers only know the run_at they were notified with, so tell them when it moves.
+                if (rs.getBoolean("inserted") || rs.getBoolean("moved")) {
+                    Notifications.NotifyWorkers(connection, "WorkInserter_CoalescedNotify", listOf(Notifications.Event(
+                        id,
+                        rs.getInt("priority"),
+                        rs.getTimestamp("run_at").toInstant().epochSecond,
+                        rs.getInt("stage"),
+                        rs.getString("strand"),
+                        workName
+                    )))
+                }
+                id
+            }
+            if (coalescedId != null) {
+                return coalescedId
+            }
+            // The holder of the key was claimed while we were inserting. Go again, this time opening a new window.
+        }
+
+        throw IllegalStateException("Coalesce key [ $key ] is still held by claimed work.")
+    }
+
     fun Any.serializeToBytes(): ByteArray = ByteArrayOutputStream().use {
         it -> ObjectOutputStream(it).writeObject(this); it
     }.toByteArray()
@@ -147,6 +431,51 @@ object WorkInserter {
         )
     }
 
+    /**
+     * Queue a call to a function registered with `AsyncFunctions`.
+     *
+     * Only the name of the function, and its arguments are stored. So queueing is cheap, the job state stays small,
+     * and work queued before a deploy still runs after it as long as the name is still registered.
+     *
+     * @param connectionManager
+     *  The connection manager to use.
+     * @param functionName
+     *  The registered (or `Class#method`) name of the function to call.
+     * @param parameters
+     *  The arguments to call the function with.
+     * @param strand
+     *  The strand this pice of work is in.
+     * @param runAt
+     *  The instant to run the piece of work at.
+     * @param priority
+     *  The priority of this piece of work. Defaults to 100.
+     */
+    @JvmStatic
+    fun HandleAsynchronouslyNamed(
+        connectionManager: ConnectionManager,
+        functionName: String,
+        parameters: Array<Any>,
+        strand: String = "default",
+        runAt: Instant = Instant.now(),
+        priority: Int = 100
+    ): Long {
+        val jobState = HandleAsyncFunctorState()
+        jobState.args = parameters.map {
+            com.jsoniter.any.Any.wrap(it)
+        }.toTypedArray()
+        jobState.functionName = functionName
+        jobState.version = 2
+
+        return InsertWork(
+            connectionManager,
+            "io.kungfury.coworker.internal.AsyncFunctorRunner",
+            JsonStream.serialize(jobState),
+            strand,
+            runAt,
+            priority
+        )
+    }
+
     @JvmStatic
     fun InsertBulkWork(
         connectionManager: ConnectionManager,
@@ -161,33 +490,57 @@ object WorkInserter {
             when (connectionManager.CONNECTION_TYPE) {
                 ConnectionType.POSTGRES -> {
                     withContext(Dispatchers.IO) {
-                        connectionManager.executeTransaction { connection ->
-                            val purifiedStrand = TextSafety.EnforceStringPurity(strand, true)
-                            val statement = connection.prepareStatement(Marginalia.AddMarginalia(
-                                "WorkInserter_InsertBulkWork",
-                                "INSERT INTO public.delayed_work (created_at, run_at, stage, strand, priority, work_unique_name, state) VALUES (current_timestamp, ?, 1, ?, ?, ?, ?) RETURNING id"
-                            ))
-                            statement.setTimestamp(1, Timestamp.from(runAt))
-                            statement.setString(2, strand)
-                            statement.setInt(3, priority)
-                            statement.setString(4, workName)
-                            statement.setString(5, workState)
-                            for (idx in 1..count) {
-                                val rs = statement.executeQuery()
-                                rs.next()
-                                val id = rs.getLong(1)
-
-                                connection.createStatement().execute(Marginalia.AddMarginalia(
-                                    "WorkInserter_BulkNotify",
-                                    String.format("NOTIFY workers, '%s'", "$id;$priority;${runAt.epochSecond};1;$purifiedStrand")
-                                ))
-                            }
-
-                            connection.commit()
-                        }
+                        connectionManager.executeTransaction({ connection ->
+                            InsertBulkWork(connection, workName, workState, strand, runAt, priority, count)
+                        }, true)
                     }
                 }
             }
         }
     }
+
+    /**
+     * Inserts `count` copies of a piece of work using a connection the caller already has open.
+     *
+     * Like the single InsertWork variant that takes a connection, this writes inside of the callers transaction
+     * and never commits.
+     *
+     * @return
+     *  The ids of the work that was inserted.
+     */
+    @JvmStatic
+    fun InsertBulkWork(
+        connection: Connection,
+        workName: String,
+        workState: String,
+        strand: String = "default",
+        runAt: Instant = Instant.now(),
+        priority: Int = 100,
+        count: Int = 1
+    ): List<Long> {
+        val ids = connection.prepareStatement(Marginalia.AddMarginalia(
+            "WorkInserter_InsertBulkWork",
+            "INSERT INTO public.delayed_work (created_at, run_at, stage, strand, priority, work_unique_name, state, state_bytes) VALUES (current_timestamp, ?, 1, ?, ?, ?, ?, ?) RETURNING id"
+        )).Use { statement ->
+            statement.setTimestamp(1, Timestamp.from(runAt))
+            statement.setString(2, strand)
+            statement.setInt(3, priority)
+            statement.setString(4, workName)
+            StateCodecs.BindState(statement, 5, 6, workState)
+
+            val inserted = ArrayList<Long>(count)
+            for (idx in 1..count) {
+                val rs = statement.executeQuery()
+                rs.next()
+                inserted.add(rs.getLong(1))
+            }
+            inserted
+        }
+
+        Notifications.NotifyWorkers(connection, "WorkInserter_BulkNotify", ids.map { id ->
+            Notifications.Event(id, priority, runAt.epochSecond, 1, strand, workName)
+        })
+
+        return ids
+    }
 }
@@ -115,6 +115,48 @@ interface ConnectionManager {
      */
     suspend fun <T> executeTransaction(query: suspend (Connection) -> T, commitOnExit: Boolean = false): T
 
+    /**
+     * Executes a read only query that can tolerate slightly stale data, rolling back when it's done.
+     *
+     * Connection managers with a read replica run these on the replica, everything else runs them like any other
+     * transaction. Never use this for something that's about to be written back, or that has to see a write that was
+     * just committed.
+     *
+     * @param query
+     *  A java function that takes a connection, and returns your result.
+     * @throws TimeoutException
+     *   If we took too long.
+     * @throws IOException
+     *   If we failed to connect to the database.
+     * @throws IllegalStateException
+     *  If there was no exception but no return value.
+     */
+    @Throws(TimeoutException::class, IOException::class, IllegalStateException::class)
+    fun <T> executeReadOnly(query: Function<Connection, T>): T {
+        return executeTransaction(query, false)
+    }
+
+    /**
+     * Executes a read only query that can tolerate slightly stale data, rolling back when it's done.
+     *
+     * Connection managers with a read replica run these on the replica, everything else runs them like any other
+     * transaction. Never use this for something that's about to be written back, or that has to see a write that was
+     * just committed.
+     *
+     * @param query
+     *  A Function that takes a connection, and returns your result.
+     * @throws TimeoutException
+     *   If we took too long.
+     * @throws IOException
+     *   If we failed to connect to the database.
+     * @throws IllegalStateException
+     *  If there was no exception but no return value.
+     */
+    @Throws(TimeoutException::class, IOException::class, IllegalStateException::class)
+    suspend fun <T> executeReadOnly(query: suspend (Connection) -> T): T {
+        return executeTransaction(query, false)
+    }
+
     /**
      * Starts listening to a a channel on the db, returning a ReceiveChannel for when a message is received.
      *
@@ -1,38 +1,60 @@
 package io.kungfury.coworker.dbs
 
+import java.util.concurrent.ConcurrentHashMap
+
 /**
  * Marginalia adds comments to the end of SQL Queries in order to denote where they were called from.
  */
 object Marginalia {
-    private val map = HashMap<String, String>()
+    private val catalog = ConcurrentHashMap<String, Annotated>()
+
+    /**
+     * A query as it was last annotated for a unique id.
+     */
+    private class Annotated(val comment: String, val query: String, val annotated: String)
 
     /**
      * Add "Marginalia" comments to queries (detect line numbers, etc.)
      *
+     * The caller is only looked up the first time a unique id is seen. After that annotating the same query again is a
+     * lookup that hands back the same string, so it's safe, and cheap to call on every query from any thread.
+     *
      * @param uniqueId
      *  The unique ID of the query. Ideally: `ClassName_QueryName`.
      * @param queryToInstrument
      *  The query to instrument. (adds the comment, and the ';' for you).
      */
     fun AddMarginalia(uniqueId: String, queryToInstrument: String): String {
-        if (map[uniqueId] != null) {
-            return "$queryToInstrument /* ${map[uniqueId]} */;"
-        } else {
-            val caller = Exception().stackTrace[1]
-            val lineNo = caller.lineNumber
-            val clazz = caller.className
-            val func = caller.methodName
+        val cached = catalog[uniqueId]
+        if (cached != null) {
+            if (cached.query === queryToInstrument || cached.query == queryToInstrument) {
+                return cached.annotated
+            }
+            // Same call site, different query (e.g. a dynamic WHERE clause). Keep the caller, re-annotate the query.
+            val reannotated = Annotated(cached.comment, queryToInstrument, "$queryToInstrument /* ${cached.comment} */;")
+            catalog[uniqueId] = reannotated
+            return reannotated.annotated
+        }
+
+        val caller = Exception().stackTrace[1]
+        val lineNo = caller.lineNumber
+        val clazz = caller.className
+        val func = caller.methodName
 
-            val finalized = "Class: $clazz, Function: $func, Line: $lineNo"
-            map[uniqueId] = finalized
-            return "$queryToInstrument /* $finalized */;"
+        val finalized = "Class: $clazz, Function: $func, Line: $lineNo"
+        val annotated = Annotated(finalized, queryToInstrument, "$queryToInstrument /* $finalized */;")
+        // If another thread got here first keep it's comment, both point at the same call site anyway.
+        val existing = catalog.putIfAbsent(uniqueId, annotated)
+        if (existing != null && existing.query == queryToInstrument) {
+            return existing.annotated
         }
+        return annotated.annotated
     }
 
     /**
      * Clears the current Marginalia Cache.
      */
     fun ClearMarginaliaCache() {
-        map.clear()
+        catalog.clear()
     }
 }
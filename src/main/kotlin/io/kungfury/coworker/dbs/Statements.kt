@@ -0,0 +1,21 @@
+package io.kungfury.coworker.dbs
+
+import java.sql.Statement
+
+/**
+ * Runs a block with a statement, closing it afterwards even if the block throws.
+ *
+ * Closing a prepared statement hands it back to pgjdbc's per-connection statement cache, so the next time the same
+ * query is prepared on that connection it reuses the server side prepared statement instead of parsing, and planning
+ * again. (This is `use` from kotlin-stdlib-jdk7, which we don't depend on.)
+ *
+ * @param block
+ *  The block to run with the statement.
+ */
+internal inline fun <S : Statement, R> S.Use(block: (S) -> R): R {
+    try {
+        return block(this)
+    } finally {
+        close()
+    }
+}
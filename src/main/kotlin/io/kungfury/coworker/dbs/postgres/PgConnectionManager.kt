@@ -2,11 +2,14 @@ package io.kungfury.coworker.dbs.postgres
 
 import com.zaxxer.hikari.HikariConfig
 import com.zaxxer.hikari.HikariDataSource
+import com.zaxxer.hikari.util.PropertyElf
+import com.zaxxer.hikari.util.UtilityElf
 
 import io.kungfury.coworker.dbs.ConnectionManager
 import io.kungfury.coworker.dbs.ConnectionType
-import io.kungfury.coworker.dbs.Marginalia
+import io.kungfury.coworker.dbs.Marginalia.AddMarginalia
 import io.kungfury.coworker.dbs.TextSafety
+import io.kungfury.coworker.dbs.Use
 
 import io.micrometer.core.instrument.MeterRegistry
 import io.micrometer.core.instrument.Metrics
@@ -24,10 +27,16 @@ import org.slf4j.LoggerFactory
 
 import java.io.IOException
 import java.sql.Connection
+import java.sql.DriverManager
+import java.sql.SQLException
+import java.sql.SQLTransientConnectionException
 import java.time.Duration
 import java.time.Instant
+import java.util.Properties
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.TimeoutException
 import java.util.function.Function
+import javax.sql.DataSource
 
 /**
  * Manages a connection pool to postgres.
@@ -35,6 +44,9 @@ import java.util.function.Function
 class PgConnectionManager : ConnectionManager {
     private val LOGGER = LoggerFactory.getLogger(PgConnectionManager::class.java)
     private val connectionPool: HikariDataSource
+    private val listenConnector: () -> Connection
+    @Volatile
+    private var replicaPool: HikariDataSource? = null
     private val timeoutLong: Long?
     private var metricRegistry: MeterRegistry = Metrics.globalRegistry
     private val queryTimer: Timer
@@ -50,9 +62,10 @@ class PgConnectionManager : ConnectionManager {
      *  The metric registry to use.
      */
     constructor(configureSource: Function<HikariConfig, HikariConfig>, timeout: Long?, metricRegistry: MeterRegistry? = null) {
-        val finalizedConfig = configureSource.apply(HikariConfig())
-        connectionPool = HikariDataSource(finalizedConfig)
         timeoutLong = timeout
+        val config = WithDefaults(configureSource.apply(HikariConfig()), TIMEOUT_MS)
+        connectionPool = HikariDataSource(config)
+        listenConnector = DirectConnector(config)
         if (metricRegistry != null) {
             this.metricRegistry = metricRegistry
         }
@@ -66,9 +79,10 @@ class PgConnectionManager : ConnectionManager {
      *  A block that takes a HikariConfig, configures it, and returns a configured HikariConfig.
      */
     constructor(configureSource: (toConfigure: HikariConfig) -> HikariConfig) {
-        val finalizedConfig = configureSource(HikariConfig())
-        connectionPool = HikariDataSource(finalizedConfig)
         timeoutLong = null
+        val config = WithDefaults(configureSource(HikariConfig()), TIMEOUT_MS)
+        connectionPool = HikariDataSource(config)
+        listenConnector = DirectConnector(config)
         queryTimer = this.metricRegistry.timer("coworker.pg.query_time", Tags.empty())
     }
 
@@ -81,9 +95,10 @@ class PgConnectionManager : ConnectionManager {
      *  An optional timeout value.
      */
     constructor(configureSource: (toConfigure: HikariConfig) -> HikariConfig, timeout: Long?) {
-        val finalizedConfig = configureSource(HikariConfig())
-        connectionPool = HikariDataSource(finalizedConfig)
         timeoutLong = timeout
+        val config = WithDefaults(configureSource(HikariConfig()), TIMEOUT_MS)
+        connectionPool = HikariDataSource(config)
+        listenConnector = DirectConnector(config)
         queryTimer = this.metricRegistry.timer("coworker.pg.query_time", Tags.empty())
     }
 
@@ -98,9 +113,10 @@ class PgConnectionManager : ConnectionManager {
      *  The metric registry to use
      */
     constructor(configureSource: (toConfigure: HikariConfig) -> HikariConfig, timeout: Long?, meterRegistry: MeterRegistry?) {
-        val finalizedConfig = configureSource(HikariConfig())
-        connectionPool = HikariDataSource(finalizedConfig)
         timeoutLong = timeout
+        val config = WithDefaults(configureSource(HikariConfig()), TIMEOUT_MS)
+        connectionPool = HikariDataSource(config)
+        listenConnector = DirectConnector(config)
         if (meterRegistry != null) {
             this.metricRegistry = meterRegistry
         }
@@ -108,161 +124,194 @@ class PgConnectionManager : ConnectionManager {
     }
 
     override val TIMEOUT_MS
-        get() = if (timeoutLong == null) {
-            300000L
-        } else {
-            timeoutLong
-        }
+        get() = timeoutLong ?: DEFAULT_TIMEOUT_MS
     override val CONNECTION_TYPE: ConnectionType = ConnectionType.POSTGRES
 
-    @Throws(TimeoutCancellationException::class, IOException::class, IllegalStateException::class)
-    override fun <T> executeTransaction(query: Function<Connection, T>, commitOnExit: Boolean): T {
-        return queryTimer.recordCallable {
-            runBlocking {
-                withTimeout(TIMEOUT_MS) {
-                    CoroutineName("Coworker - ExecuteTransactionJava")
-
-                    var result: T? = null
-                    var error: Exception? = null
-                    var conn: Connection? = null
+    /**
+     * Adds a read replica, that `executeReadOnly` queries are run on from now on. If a connection to the replica can't
+     * be had, reads fall back to the primary.
+     *
+     * @param configureSource
+     *  A function that takes in a "HikariConfig" object, configures it for the replica, and returns it.
+     */
+    fun UseReplica(configureSource: Function<HikariConfig, HikariConfig>): PgConnectionManager {
+        return UseReplica { config: HikariConfig -> configureSource.apply(config) }
+    }
 
-                    try {
-                        conn = connectionPool.connection
-                        conn.autoCommit = false
-                        result = query.apply(conn)
-                        if (commitOnExit) {
-                            conn.commit()
-                        }
-                    } catch (e: Exception) {
-                        if (conn != null) {
-                            conn.rollback()
-                            error = e
-                        }
-                    } finally {
-                        if (conn != null) {
-                            conn.close()
-                        }
-                    }
+    /**
+     * Adds a read replica, that `executeReadOnly` queries are run on from now on. If a connection to the replica can't
+     * be had, reads fall back to the primary.
+     *
+     * @param configureSource
+     *  A block that takes a HikariConfig, configures it for the replica, and returns it.
+     */
+    fun UseReplica(configureSource: (toConfigure: HikariConfig) -> HikariConfig): PgConnectionManager {
+        val config = WithDefaults(configureSource(HikariConfig()), TIMEOUT_MS)
+        config.isReadOnly = true
+        if (config.poolName == null) {
+            config.poolName = "coworker-replica"
+        }
+        val previous = replicaPool
+        replicaPool = HikariDataSource(config)
+        previous?.close()
+        return this
+    }
 
-                    if (!isActive) {
-                        throw TimeoutException("Failed to complete in time!")
-                    }
+    @Throws(TimeoutException::class, IOException::class, IllegalStateException::class)
+    override fun <T> executeTransaction(query: Function<Connection, T>, commitOnExit: Boolean): T {
+        return Execute(connectionPool, query, commitOnExit)
+    }
 
-                    if (error != null) {
-                        throw error
-                    }
+    @Throws(TimeoutException::class, IOException::class, IllegalStateException::class)
+    override suspend fun <T> executeTransaction(query: suspend (Connection) -> T, commitOnExit: Boolean): T {
+        return Execute(connectionPool, query, commitOnExit)
+    }
 
-                    if (result == null) {
-                        throw IllegalStateException("Result was null at the end of executeTransactionJava")
-                    } else {
-                        result
-                    }
-                }
-            }
+    @Throws(TimeoutException::class, IOException::class, IllegalStateException::class)
+    override fun <T> executeReadOnly(query: Function<Connection, T>): T {
+        val replica = replicaPool ?: return Execute(connectionPool, query, false)
+        return try {
+            Execute(replica, query, false)
+        } catch (err: SQLTransientConnectionException) {
+            LOGGER.warn("Failed to get a replica connection, reading from the primary: ${err.message}")
+            Execute(connectionPool, query, false)
         }
     }
 
-    @Throws(TimeoutCancellationException::class, IOException::class, IllegalStateException::class)
-    override suspend fun <T> executeTransaction(query: suspend (Connection) -> T, commitOnExit: Boolean): T {
-        return withTimeout(TIMEOUT_MS) {
-            CoroutineName("Coworker - ExecuteTransaction")
-            val timeStart = Instant.now()
+    @Throws(TimeoutException::class, IOException::class, IllegalStateException::class)
+    override suspend fun <T> executeReadOnly(query: suspend (Connection) -> T): T {
+        val replica = replicaPool ?: return Execute(connectionPool, query, false)
+        return try {
+            Execute(replica, query, false)
+        } catch (err: SQLTransientConnectionException) {
+            LOGGER.warn("Failed to get a replica connection, reading from the primary: ${err.message}")
+            Execute(connectionPool, query, false)
+        }
+    }
 
+    private fun <T> Execute(pool: HikariDataSource, query: Function<Connection, T>, commitOnExit: Boolean): T {
+        return queryTimer.recordCallable {
             var result: T? = null
             var error: Exception? = null
             var conn: Connection? = null
 
             try {
-                conn = connectionPool.connection
+                conn = pool.connection
                 conn.autoCommit = false
-                result = query(conn)
+                result = query.apply(conn)
                 if (commitOnExit) {
                     conn.commit()
                 }
             } catch (e: Exception) {
-                if (conn != null) {
-                    conn.rollback()
-                }
+                RollbackQuietly(conn)
                 error = e
             } finally {
-                if (conn != null) {
-                    conn.close()
-                }
-            }
-            val timeEnd = Instant.now()
-            queryTimer.record(Duration.between(timeStart, timeEnd))
-
-            if (!isActive) {
-                throw TimeoutException("Failed to complete in time!")
+                conn?.close()
             }
 
             if (error != null) {
-                throw error
+                throw AsTimeout(error)
             }
 
-            if (result == null) {
-                throw IllegalStateException("Result was null at the end of executeTransaction")
-            } else {
-                result
+            result ?: throw IllegalStateException("Result was null at the end of executeTransactionJava")
+        }
+    }
+
+    private suspend fun <T> Execute(pool: HikariDataSource, query: suspend (Connection) -> T, commitOnExit: Boolean): T {
+        val timeStart = Instant.now()
+
+        var result: T? = null
+        var error: Exception? = null
+        var conn: Connection? = null
+
+        try {
+            conn = pool.connection
+            conn.autoCommit = false
+            result = query(conn)
+            if (commitOnExit) {
+                conn.commit()
             }
+        } catch (e: Exception) {
+            RollbackQuietly(conn)
+            error = e
+        } finally {
+            conn?.close()
+        }
+        val timeEnd = Instant.now()
+        queryTimer.record(Duration.between(timeStart, timeEnd))
+
+        if (error != null) {
+            throw AsTimeout(error)
+        }
+
+        return result ?: throw IllegalStateException("Result was null at the end of executeTransaction")
+    }
+
+    private fun RollbackQuietly(conn: Connection?) {
+        try {
+            conn?.rollback()
+        } catch (err: SQLException) {
+            // The connection is probably broken (e.g. the socket timed out), Hikari evicts it on close.
+            LOGGER.warn("Failed to rollback transaction: ${err.message}")
         }
     }
 
     @UseExperimental(ExperimentalCoroutinesApi::class)
     override fun listenToChannel(channel: String, failureLimit: Short): ReceiveChannel<String> {
-        val failureGauge = this.metricRegistry.gauge("coworker.listen.failure_gauge", Tags.of(Tag.of("channel", channel)), 0)
-
-        return GlobalScope.produce {
-            CoroutineName("PostgresListen($channel)")
-
-            // So all in all this is subpar.
-            //
-            // Why is this subpar do you ask? Well because postgres keeps LISTEN/NOTIFY setup to one connection.
-            // Meaning there's no way to efficiently only use one connection from the thread pool whenever we need it.
-            // We always have to bogart one connection for LISTEN/NOTIFY.
+        val failureGauge = this.metricRegistry.gauge(
+            "coworker.listen.failure_gauge",
+            Tags.of(Tag.of("channel", channel)),
+            AtomicInteger(0)
+        )
+
+        return GlobalScope.produce(Dispatchers.IO + CoroutineName("PostgresListen($channel)")) {
+            // Postgres ties LISTEN to a single connection, so the listener owns one connection for as long as it runs.
+            // It's opened straight from the driver instead of borrowed from the pool, so it doesn't take a connection
+            // away from work.
             //
-            // It's also subpar because there's no real way to know if we've got a transient failure, or if we need
-            // to reconnect to the db. Even if we were to enumerate all exception possibilities, differing architectures
-            // may mean something is "transient" while in someone elses architecture it isn't.
+            // There's no real way to know if we've got a transient failure, or if we need to reconnect to the db. Even
+            // if we were to enumerate all exception possibilities, differing architectures may mean something is
+            // "transient" while in someone elses architecture it isn't.
             //
             // So this method attempts to be "acceptable to failures". Everytime we get an error we'll increase a
-            // counter. If the counter hits failureLimit, we determine "this is a bad connection",
-            // and attempt to get a new one. If we fail to get a new connection the channel closes and you should reopen.
-            var raw_conn: Connection? = null
-            var conn: PGConnection?
+            // counter, and back off. If the counter hits failureLimit, we determine "this is a bad connection", close
+            // it, and open a new one. Notifications sent while we're reconnecting are lost, the scan for headless work
+            // picks that work up.
+
+            // Ensure we only have a valid channel name, and not some rando sql injection.
+            val newChannel = TextSafety.EnforceStringPurity(channel)
+            if (newChannel != channel) {
+                LOGGER.error("Failed to setup listen channel, invalid channel name: $channel")
+                this.channel.close()
+                return@produce
+            }
+
+            var conn: Connection? = null
             var counter = 0
+            var backoff = INITIAL_LISTEN_BACKOFF
+            var lastChecked = Instant.now()
 
             try {
-                raw_conn = connectionPool.connection
-                conn = raw_conn.unwrap(PGConnection::class.java)
-
-                // Ensure we only have a valid channel name, and not some rando sql injection.
-                val newChannel = TextSafety.EnforceStringPurity(channel)
-
-                if (newChannel != channel) {
-                    throw IllegalStateException("invalid channel name!")
-                }
-                val statement = raw_conn.createStatement()
-                statement.execute(Marginalia.AddMarginalia("PgConnectionManager_listenToChannel", "LISTEN $newChannel"))
-                statement.close()
-
-                while (true) {
-                    if (counter >= failureLimit) {
-                        raw_conn = connectionPool.connection
-                        conn = raw_conn.unwrap(PGConnection::class.java)
-                    }
-
-                    // Assert we have valid values.
-                    raw_conn!!
-                    conn!!
-
+                while (isActive) {
                     try {
-                        // Execute a query to ensure we can connect to the backend.
-                        val stmt = raw_conn.createStatement()
-                        stmt.execute(Marginalia.AddMarginalia("PgConnectionManager_selectOnlineCheck", "SELECT 1"))
-                        stmt.close()
+                        if (conn == null) {
+                            val opened = listenConnector()
+                            try {
+                                opened.autoCommit = true
+                                opened.createStatement().Use { statement ->
+                                    statement.execute(AddMarginalia("PgConnectionManager_listenToChannel", "LISTEN $newChannel"))
+                                }
+                            } catch (err: Exception) {
+                                CloseQuietly(opened)
+                                throw err
+                            }
+                            conn = opened
+                            lastChecked = Instant.now()
+                        }
 
-                        conn.notifications?.forEach { pgNotification ->
+                        // Waits on the socket for up to LISTEN_WAIT instead of polling.
+                        val notifications = conn.unwrap(PGConnection::class.java).getNotifications(LISTEN_WAIT_MS)
+                        notifications?.forEach { pgNotification ->
                             if (pgNotification.name.equals(channel)) {
                                 val param: String? = pgNotification.parameter
                                 if (param != null) {
@@ -271,27 +320,141 @@ class PgConnectionManager : ConnectionManager {
                             }
                         }
 
-                        if (counter > 0) {
-                            failureGauge?.dec()
-                            counter--
+                        // A quiet connection may be a dead one, check on it every so often.
+                        if (notifications.isNullOrEmpty() &&
+                            Duration.between(lastChecked, Instant.now()) > LISTEN_LIVENESS_INTERVAL) {
+                            if (!conn.isValid(LISTEN_LIVENESS_TIMEOUT_SECONDS)) {
+                                throw SQLException("Listen connection is no longer valid.")
+                            }
+                            lastChecked = Instant.now()
                         }
+
+                        counter = 0
+                        backoff = INITIAL_LISTEN_BACKOFF
+                        failureGauge?.set(0)
+                    } catch (err: CancellationException) {
+                        throw err
                     } catch (err: Exception) {
                         LOGGER.error("Failed to check for notification on connection!\n${err.message}\n" +
                             "  ${err.stackTrace.joinToString("\n  ")}")
-                        failureGauge?.inc()
                         counter++
+                        failureGauge?.set(counter)
+                        if (conn != null && counter >= failureLimit) {
+                            CloseQuietly(conn)
+                            conn = null
+                        }
+                        delay(backoff.toMillis())
+                        backoff = if (backoff.multipliedBy(2) > MAX_LISTEN_BACKOFF) MAX_LISTEN_BACKOFF else backoff.multipliedBy(2)
                     }
-
-                    delay(500)
                 }
-            } catch (err: Exception) {
-                LOGGER.error("Failed to setup listen channel, or listen channel has thrown unknown exception.\n" +
-                    "${err.message}\n  ${err.stackTrace.joinToString("\n  ")}")
             } finally {
-                raw_conn?.close()
+                CloseQuietly(conn)
+            }
+        }
+    }
+
+    private fun CloseQuietly(conn: Connection?) {
+        try {
+            conn?.close()
+        } catch (err: SQLException) {
+            LOGGER.warn("Failed to close listen connection: ${err.message}")
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_TIMEOUT_MS = 300000L
+        private const val LISTEN_WAIT_MS = 500
+        private const val LISTEN_LIVENESS_TIMEOUT_SECONDS = 5
+        private val LISTEN_LIVENESS_INTERVAL: Duration = Duration.ofSeconds(30)
+        private val INITIAL_LISTEN_BACKOFF: Duration = Duration.ofMillis(100)
+        private val MAX_LISTEN_BACKOFF: Duration = Duration.ofSeconds(30)
+        // How long the socket may sit idle past the statement timeout, so postgres gets to cancel queries first.
+        private const val SOCKET_TIMEOUT_GRACE_SECONDS = 30L
+        // query_canceled (statement_timeout), and lock_not_available (lock_timeout).
+        private val TIMEOUT_SQL_STATES = setOf("57014", "55P03")
+
+        /**
+         * Sets server side timeouts on every connection of a pool: `statement_timeout` is the manager's timeout, and
+         * the driver's `socketTimeout` is a little longer, so a dead connection can't hang forever. Tighter limits,
+         * like `lock_timeout`, are only set per transaction by a `QueryClass`. Also has the driver use server side
+         * prepared statements from the first execution (`prepareThreshold=1`), Coworker runs the same few queries
+         * constantly. Anything already configured is left alone, an existing `connectionInitSql` runs after ours so it
+         * can override them.
+         */
+        private fun WithDefaults(config: HikariConfig, timeoutMs: Long): HikariConfig {
+            val initSql = "SET statement_timeout = $timeoutMs"
+            config.connectionInitSql = if (config.connectionInitSql.isNullOrEmpty()) {
+                initSql
+            } else {
+                "$initSql; ${config.connectionInitSql}"
+            }
+            if (!config.dataSourceProperties.containsKey("socketTimeout")) {
+                config.addDataSourceProperty(
+                    "socketTimeout",
+                    Math.max(timeoutMs / 1000, 1) + SOCKET_TIMEOUT_GRACE_SECONDS
+                )
+            }
+            if (!config.dataSourceProperties.containsKey("prepareThreshold")) {
+                config.addDataSourceProperty("prepareThreshold", 1)
             }
+            return config
+        }
 
-            this.channel.close()
+        /**
+         * Builds a way to open connections straight from the driver with the same settings as a pool, without going
+         * through the pool.
+         */
+        private fun DirectConnector(config: HikariConfig): () -> Connection {
+            val username = config.username
+            val password = config.password
+            val dataSource: DataSource? = config.dataSource ?: config.dataSourceClassName?.let { className ->
+                val created = UtilityElf.createInstance(className, DataSource::class.java)
+                PropertyElf.setTargetFromProperties(created, config.dataSourceProperties)
+                created
+            }
+            if (dataSource != null) {
+                return {
+                    if (username == null) dataSource.connection else dataSource.getConnection(username, password)
+                }
+            }
+
+            val url = config.jdbcUrl ?: throw IllegalStateException("HikariConfig needs a jdbcUrl, or a data source.")
+            if (config.driverClassName != null) {
+                Class.forName(config.driverClassName)
+            }
+            val properties = DriverProperties(config)
+            return { DriverManager.getConnection(url, properties) }
+        }
+
+        /**
+         * Get the properties to hand the driver for a config, the same way Hikari's `DriverDataSource` does. Every
+         * value is copied as a string, since drivers read them with `getProperty`, which skips anything that isn't one
+         * (like the `socketTimeout` we add as a number).
+         */
+        internal fun DriverProperties(config: HikariConfig): Properties {
+            val properties = Properties()
+            for ((key, value) in config.dataSourceProperties) {
+                properties.setProperty(key.toString(), value.toString())
+            }
+            if (config.username != null) {
+                properties.setProperty("user", config.username)
+            }
+            if (config.password != null) {
+                properties.setProperty("password", config.password)
+            }
+            return properties
+        }
+
+        /**
+         * Turns postgres cancelling a query for a timeout into a `TimeoutException`.
+         */
+        internal fun AsTimeout(error: Exception): Exception {
+            if (error is SQLException && TIMEOUT_SQL_STATES.contains(error.sqlState)) {
+                val timeout = TimeoutException("Failed to complete in time: ${error.message}")
+                timeout.initCause(error)
+                return timeout
+            }
+            return error
         }
     }
 }
@@ -0,0 +1,50 @@
+package io.kungfury.coworker.dbs.postgres
+
+import io.kungfury.coworker.dbs.Marginalia.AddMarginalia
+import io.kungfury.coworker.dbs.Use
+
+import java.sql.Connection
+import java.time.Duration
+
+/**
+ * Classes of queries that get tighter timeouts than a connection's defaults.
+ *
+ * Every connection from a `PgConnectionManager` starts with `statement_timeout` set to it's timeout, and no
+ * `lock_timeout`. A query class tightens those for one transaction with `SET LOCAL`, so postgres itself cancels the
+ * query, and the connection goes back to the pool.
+ *
+ * @param StatementTimeout
+ *  The longest any statement in the transaction may run, or null to keep the connection's default.
+ * @param LockTimeout
+ *  The longest any statement in the transaction may wait on a lock.
+ */
+enum class QueryClass(val StatementTimeout: Duration?, val LockTimeout: Duration) {
+    /**
+     * Claiming, and checking locks on work. These are small indexed queries on the hot path, if they're slow it's
+     * better to move on to other work.
+     */
+    CLAIM(Duration.ofSeconds(5), Duration.ofSeconds(1)),
+
+    /**
+     * Background upkeep (scanning for missed work, reconciling counters, deleting finished work). These may take a
+     * while, but should never make workers wait on their locks.
+     */
+    BACKGROUND(null, Duration.ofSeconds(1));
+
+    /**
+     * Apply this class's timeouts to the current transaction. Must be called inside a transaction.
+     *
+     * @param connection
+     *  The connection with an open transaction.
+     */
+    fun ApplyTo(connection: Connection) {
+        val settings = StringBuilder()
+        if (StatementTimeout != null) {
+            settings.append("SET LOCAL statement_timeout = ${StatementTimeout.toMillis()}; ")
+        }
+        settings.append("SET LOCAL lock_timeout = ${LockTimeout.toMillis()}")
+        connection.createStatement().Use { statement ->
+            statement.execute(AddMarginalia("QueryClass_${name.toLowerCase()}", settings.toString()))
+        }
+    }
+}
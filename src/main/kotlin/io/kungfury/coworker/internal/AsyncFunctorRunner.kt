@@ -2,6 +2,7 @@ package io.kungfury.coworker.internal
 
 import com.jsoniter.JsonIterator
 
+import io.kungfury.coworker.AsyncFunctions
 import io.kungfury.coworker.BackgroundKotlinWork
 import io.kungfury.coworker.WorkGarbage
 import io.kungfury.coworker.dbs.ConnectionManager
@@ -36,6 +37,13 @@ class AsyncFunctorRunner(
             val parsed: HandleAsyncFunctorState = withContext(Dispatchers.IO) {
                 JsonIterator.parse(internalState).read(HandleAsyncFunctorState::class.java)
             }
+            val functionName: String? = parsed.functionName
+
+            if (functionName != null) {
+                AsyncFunctions.Resolve(functionName)(parsed.args)
+                return finishWork()
+            }
+
             val serializedFunctor = parsed.methodState.serializedClosure
 
             if (!parsed.isJava) {
@@ -50,10 +58,10 @@ class AsyncFunctorRunner(
 
             finishWork()
         } catch (err: Exception) {
-            failWork(
+            retryOrFailWork(
                 connectionManager,
                 "io.kungfury.coworker.internal.AsyncFunctorRunner",
-                "Error: ${err.message}\n  ${err.stackTrace.joinToString("\n  ")}"
+                err
             )
         }
     }
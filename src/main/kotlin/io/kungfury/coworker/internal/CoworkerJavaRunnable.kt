@@ -1,21 +1,38 @@
 package io.kungfury.coworker.internal
 
 import io.kungfury.coworker.DelayedJavaWork
+import io.kungfury.coworker.RetryPolicies
+import io.kungfury.coworker.dbs.ConnectionManager
 
 /**
  * ThinWrapper to run an actual piece of work for java.
  *
+ * @param connectionManager
+ *  The connection manager used to retry the work if it throws.
  * @param describedWork
  *  The described work to run to run.
  * @param work
  *  The actual instance of the class.
  */
 class CoworkerJavaRunnable(
+    private val connectionManager: ConnectionManager,
     private val describedWork: DescribedWork,
     private val work: DelayedJavaWork
 ) : Runnable {
     override fun run() {
-        // Don't use runBlocking since the job will call it with connectionManager java apis.
-        work.WorkPart(describedWork.State).run()
+        try {
+            // Don't use runBlocking since the job will call it with connectionManager java apis.
+            work.WorkPart(describedWork.State).run()
+        } catch (err: Exception) {
+            // Without a policy the work is released back to the pool like it always has been.
+            if (RetryPolicies.ForWork(describedWork.workUniqueName) == null) {
+                throw err
+            }
+            work.retryOrFailWork(
+                connectionManager,
+                describedWork.workUniqueName,
+                err
+            )
+        }
     }
-}
\ No newline at end of file
+}
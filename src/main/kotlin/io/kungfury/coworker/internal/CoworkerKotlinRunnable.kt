@@ -1,6 +1,8 @@
 package io.kungfury.coworker.internal
 
 import io.kungfury.coworker.DelayedKotlinWork
+import io.kungfury.coworker.RetryPolicies
+import io.kungfury.coworker.dbs.ConnectionManager
 
 import kotlinx.coroutines.CoroutineName
 import kotlinx.coroutines.runBlocking
@@ -8,19 +10,36 @@ import kotlinx.coroutines.runBlocking
 /**
  * ThinWrapper to run an actual piece of work for kotlin.
  *
+ * @param connectionManager
+ *  The connection manager used to retry the work if it throws.
  * @param describedWork
  *  The described work to run to run.
  * @param work
  *  The actual instance of the class.
  */
 class CoworkerKotlinRunnable(
+    private val connectionManager: ConnectionManager,
     private val describedWork: DescribedWork,
     private val work: DelayedKotlinWork
 ) : Runnable {
     override fun run() {
-        runBlocking {
-            CoroutineName("CoworkerKotlinRunnable - ${work.Id}")
-            work.WorkPart(describedWork.State, this.coroutineContext)
+        try {
+            runBlocking {
+                CoroutineName("CoworkerKotlinRunnable - ${work.Id}")
+                work.WorkPart(describedWork.State, this.coroutineContext)
+            }
+        } catch (err: Exception) {
+            // Without a policy the work is released back to the pool like it always has been.
+            if (RetryPolicies.ForWork(describedWork.workUniqueName) == null) {
+                throw err
+            }
+            runBlocking {
+                work.retryOrFailWork(
+                    connectionManager,
+                    describedWork.workUniqueName,
+                    err
+                )
+            }
         }
     }
-}
\ No newline at end of file
+}
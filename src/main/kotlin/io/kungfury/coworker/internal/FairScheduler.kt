@@ -0,0 +1,91 @@
+package io.kungfury.coworker.internal
+
+import java.util.PriorityQueue
+
+/**
+ * Orders work so that strands share workers by weight, instead of by artificial priority alone.
+ *
+ * Every strand has a "pass" which goes up by `1 / weight` each time one of it's jobs is claimed, and work is handed out
+ * from the strand with the lowest pass first. So a strand with weight 2 gets twice the claims of a strand with weight
+ * 1, no matter how much work either has queued. Within a strand work keeps it's usual order.
+ *
+ * Strands that go idle don't bank their share: when they come back they start at the current virtual time (the pass
+ * of the last strand claimed from), not where they left off.
+ */
+internal class FairScheduler {
+    private val passes = HashMap<String, Double>()
+    private var virtualTime = 0.0
+
+    /**
+     * Interleaves work across strands in the order it should be claimed. Doesn't change any passes, call `Charge` for
+     * the work that actually gets claimed.
+     *
+     * @param work
+     *  The work to order.
+     * @param weightFor
+     *  The weight of a strand.
+     * @param orderWithinStrand
+     *  The order of work within a single strand, lowest first.
+     */
+    fun Order(
+        work: List<WorkNotification>,
+        weightFor: (String) -> Int,
+        orderWithinStrand: (WorkNotification) -> Long
+    ): List<WorkNotification> {
+        val byStrand = work.groupBy { it.Strand }
+        val queue = PriorityQueue<StrandQueue>(Math.max(byStrand.size, 1), compareBy<StrandQueue> { it.pass }.thenBy { it.strand })
+        for ((strand, strandWork) in byStrand) {
+            queue.add(StrandQueue(
+                strand,
+                StartingPass(strand),
+                Stride(weightFor(strand)),
+                strandWork.sortedBy(orderWithinStrand).iterator()
+            ))
+        }
+
+        val ordered = ArrayList<WorkNotification>(work.size)
+        while (queue.isNotEmpty()) {
+            val next = queue.poll()
+            ordered.add(next.work.next())
+            if (next.work.hasNext()) {
+                next.pass += next.stride
+                queue.add(next)
+            }
+        }
+        return ordered
+    }
+
+    /**
+     * Records that a job of a strand was claimed, moving the strand back by it's stride.
+     *
+     * @param strand
+     *  The strand of the claimed work.
+     * @param weight
+     *  The weight of the strand.
+     */
+    fun Charge(strand: String, weight: Int) {
+        val start = StartingPass(strand)
+        virtualTime = start
+        passes[strand] = start + Stride(weight)
+
+        if (passes.size > MAX_TRACKED_STRANDS) {
+            // Strands behind virtual time would start from it anyway.
+            passes.values.removeIf { it <= virtualTime }
+        }
+    }
+
+    private fun StartingPass(strand: String): Double = Math.max(passes[strand] ?: virtualTime, virtualTime)
+
+    private fun Stride(weight: Int): Double = 1.0 / Math.max(weight, 1)
+
+    private class StrandQueue(
+        val strand: String,
+        var pass: Double,
+        val stride: Double,
+        val work: Iterator<WorkNotification>
+    )
+
+    private companion object {
+        const val MAX_TRACKED_STRANDS = 4096
+    }
+}
@@ -0,0 +1,297 @@
+package io.kungfury.coworker.internal
+
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * A concurrent set of primitive longs.
+ *
+ * The set is split into stripes by hash, each one an open addressed (linear probing) `LongArray` with it's own lock.
+ * So adds never box, membership checks are constant time, and threads only contend when they hash to the same stripe.
+ *
+ * @param expectedSize
+ *  The number of entries the set is expected to hold, used to size the stripes up front.
+ */
+internal class LongStripedSet(expectedSize: Int) {
+    private val stripes: Array<Stripe>
+    private val stripeShift: Int
+
+    init {
+        val stripeCount = nextPowerOfTwo(Math.min(Math.max(Runtime.getRuntime().availableProcessors() * 2, 2), 64))
+        val perStripe = nextPowerOfTwo(Math.max(expectedSize * 2 / stripeCount, 16))
+        stripeShift = 64 - Integer.numberOfTrailingZeros(stripeCount)
+        stripes = Array(stripeCount) { Stripe(perStripe) }
+    }
+
+    /**
+     * The number of entries in the set. Only a point in time estimate while other threads are writing.
+     */
+    fun size(): Int {
+        var total = 0
+        for (stripe in stripes) {
+            total += stripe.size
+        }
+        return total
+    }
+
+    fun isEmpty(): Boolean = stripes.all { it.size == 0 }
+
+    /**
+     * Adds a value to the set.
+     *
+     * @return
+     *  If the value was not already present.
+     */
+    fun add(value: Long): Boolean {
+        val hash = mix(value)
+        return stripeFor(hash).add(value, hash)
+    }
+
+    fun contains(value: Long): Boolean {
+        val hash = mix(value)
+        return stripeFor(hash).contains(value, hash)
+    }
+
+    /**
+     * Removes a value from the set.
+     *
+     * @return
+     *  If the value was present.
+     */
+    fun remove(value: Long): Boolean {
+        val hash = mix(value)
+        return stripeFor(hash).remove(value, hash)
+    }
+
+    /**
+     * Removes every value from the set, and returns them.
+     */
+    fun drain(): LongArray {
+        val drained = stripes.map { it.drain() }
+        val result = LongArray(drained.sumBy { it.size })
+        var offset = 0
+        for (values in drained) {
+            System.arraycopy(values, 0, result, offset, values.size)
+            offset += values.size
+        }
+        return result
+    }
+
+    /**
+     * Copies up to `limit` values out of the set, without removing them.
+     */
+    fun snapshot(limit: Int): LongArray {
+        val result = LongArray(Math.min(limit, size()))
+        var offset = 0
+        for (stripe in stripes) {
+            if (offset == result.size) {
+                break
+            }
+            offset = stripe.copyInto(result, offset)
+        }
+        return if (offset == result.size) result else result.copyOf(offset)
+    }
+
+    /**
+     * Removes every one of the values from the set.
+     */
+    fun removeAll(values: LongArray) {
+        for (value in values) {
+            remove(value)
+        }
+    }
+
+    private fun stripeFor(hash: Long): Stripe = stripes[(hash ushr stripeShift).toInt()]
+
+    /**
+     * A single open addressed table. Zero is the empty slot marker, so it's tracked with a flag instead.
+     */
+    private class Stripe(initialCapacity: Int) {
+        private val lock = ReentrantLock()
+        private var table = LongArray(initialCapacity)
+        private var hasZero = false
+
+        @Volatile
+        var size = 0
+            private set
+
+        fun add(value: Long, hash: Long): Boolean {
+            lock.lock()
+            try {
+                if (value == 0L) {
+                    if (hasZero) {
+                        return false
+                    }
+                    hasZero = true
+                    size += 1
+                    return true
+                }
+
+                var slot = slotFor(hash, table.size)
+                while (true) {
+                    val existing = table[slot]
+                    if (existing == value) {
+                        return false
+                    }
+                    if (existing == 0L) {
+                        table[slot] = value
+                        size += 1
+                        // Keep the load factor under a half so probe sequences stay short.
+                        if (size * 2 > table.size) {
+                            resize()
+                        }
+                        return true
+                    }
+                    slot = (slot + 1) and (table.size - 1)
+                }
+            } finally {
+                lock.unlock()
+            }
+        }
+
+        fun contains(value: Long, hash: Long): Boolean {
+            lock.lock()
+            try {
+                if (value == 0L) {
+                    return hasZero
+                }
+                var slot = slotFor(hash, table.size)
+                while (true) {
+                    val existing = table[slot]
+                    if (existing == value) {
+                        return true
+                    }
+                    if (existing == 0L) {
+                        return false
+                    }
+                    slot = (slot + 1) and (table.size - 1)
+                }
+            } finally {
+                lock.unlock()
+            }
+        }
+
+        fun remove(value: Long, hash: Long): Boolean {
+            lock.lock()
+            try {
+                if (value == 0L) {
+                    if (!hasZero) {
+                        return false
+                    }
+                    hasZero = false
+                    size -= 1
+                    return true
+                }
+
+                val mask = table.size - 1
+                var slot = slotFor(hash, table.size)
+                while (table[slot] != value) {
+                    if (table[slot] == 0L) {
+                        return false
+                    }
+                    slot = (slot + 1) and mask
+                }
+
+                // Backward shift deletion, so we never need tombstones.
+                var hole = slot
+                var next = (hole + 1) and mask
+                while (table[next] != 0L) {
+                    val home = slotFor(mix(table[next]), table.size)
+                    // Only move the entry if the hole is between it's home slot, and where it lives now.
+                    if (((next - home) and mask) >= ((next - hole) and mask)) {
+                        table[hole] = table[next]
+                        hole = next
+                    }
+                    next = (next + 1) and mask
+                }
+                table[hole] = 0L
+                size -= 1
+                return true
+            } finally {
+                lock.unlock()
+            }
+        }
+
+        fun drain(): LongArray {
+            lock.lock()
+            try {
+                val result = LongArray(size)
+                var idx = 0
+                if (hasZero) {
+                    result[idx++] = 0L
+                    hasZero = false
+                }
+                for (slot in table.indices) {
+                    if (table[slot] != 0L) {
+                        result[idx++] = table[slot]
+                        table[slot] = 0L
+                    }
+                }
+                size = 0
+                return result
+            } finally {
+                lock.unlock()
+            }
+        }
+
+        /**
+         * Copies values into `target` starting at `offset` until either it's full, or this stripe runs out.
+         *
+         * @return
+         *  The offset after the last copied value.
+         */
+        fun copyInto(target: LongArray, offset: Int): Int {
+            lock.lock()
+            try {
+                var idx = offset
+                if (hasZero && idx < target.size) {
+                    target[idx++] = 0L
+                }
+                for (value in table) {
+                    if (idx == target.size) {
+                        break
+                    }
+                    if (value != 0L) {
+                        target[idx++] = value
+                    }
+                }
+                return idx
+            } finally {
+                lock.unlock()
+            }
+        }
+
+        private fun resize() {
+            val old = table
+            table = LongArray(old.size * 2)
+            val mask = table.size - 1
+            for (value in old) {
+                if (value != 0L) {
+                    var slot = slotFor(mix(value), table.size)
+                    while (table[slot] != 0L) {
+                        slot = (slot + 1) and mask
+                    }
+                    table[slot] = value
+                }
+            }
+        }
+
+        private fun slotFor(hash: Long, capacity: Int): Int = hash.toInt() and (capacity - 1)
+    }
+
+    companion object {
+        /**
+         * The murmur3 64 bit finalizer. Work ids are sequential, so they need spreading before they're used as a hash.
+         */
+        private fun mix(value: Long): Long {
+            var hash = value
+            hash = (hash xor (hash ushr 33)) * -0xae502812aa7333L
+            hash = (hash xor (hash ushr 33)) * -0x3b314601e57a13adL
+            return hash xor (hash ushr 33)
+        }
+
+        private fun nextPowerOfTwo(value: Int): Int {
+            val highest = Integer.highestOneBit(value)
+            return if (highest == value) value else highest shl 1
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package io.kungfury.coworker.internal
+
+import io.kungfury.coworker.dbs.Marginalia.AddMarginalia
+import io.kungfury.coworker.dbs.TextSafety
+import io.kungfury.coworker.dbs.Use
+
+import java.sql.Connection
+
+/**
+ * Helpers for sending many work notifications at once.
+ *
+ * Each event is the usual `id;priority;queuedAt;stage;strand`, with events joined by newlines into as few
+ * notifications as fit under postgres's payload limit. With `SendWorkNames` the work name is sent as a sixth field.
+ * Readers take any fields past the fifth as optional, so they can be added without breaking newer nodes.
+ */
+object Notifications {
+    // Postgres rejects notification payloads of 8000 bytes or more, leave some room for safety.
+    private const val MAX_PAYLOAD_BYTES = 7900
+    // Work names are class names, keep the characters those can have, but nothing that could break the event format.
+    private val UNSAFE_WORK_NAME = Regex("[^A-Za-z0-9_$.]")
+
+    /**
+     * If events carry the work name. Nodes before 1.2.1 drop events with more than five fields, so only turn this on
+     * once every node has been upgraded.
+     */
+    @JvmStatic
+    @Volatile
+    var SendWorkNames: Boolean = false
+
+    /**
+     * Formats a single notification event.
+     */
+    @JvmStatic
+    fun Event(id: Long, priority: Int, queuedAt: Long, stage: Int, strand: String, workName: String): String {
+        val event = "$id;$priority;$queuedAt;$stage;${TextSafety.EnforceStringPurity(strand, true)}"
+        return if (SendWorkNames) "$event;${UNSAFE_WORK_NAME.replace(workName, "")}" else event
+    }
+
+    /**
+     * Joins events with newlines, splitting them when they'd be too large for one notification.
+     */
+    fun Payloads(events: List<String>): List<String> {
+        val payloads = ArrayList<String>()
+        val current = StringBuilder()
+        for (event in events) {
+            if (current.isNotEmpty() && current.length + event.length + 1 > MAX_PAYLOAD_BYTES) {
+                payloads.add(current.toString())
+                current.setLength(0)
+            }
+            if (current.isNotEmpty()) {
+                current.append('\n')
+            }
+            current.append(event)
+        }
+        if (current.isNotEmpty()) {
+            payloads.add(current.toString())
+        }
+        return payloads
+    }
+
+    /**
+     * Notifies workers about every event, with a single parameterized `pg_notify` for all of them. Does not commit.
+     *
+     * @param connection
+     *  The connection to notify on.
+     * @param uniqueId
+     *  The marginalia id of the caller.
+     * @param events
+     *  The events to send, built with `Event`.
+     */
+    @JvmStatic
+    fun NotifyWorkers(connection: Connection, uniqueId: String, events: List<String>) {
+        val payloads = Payloads(events)
+        if (payloads.isEmpty()) {
+            return
+        }
+        connection.prepareStatement(AddMarginalia(
+            uniqueId,
+            "SELECT pg_notify('workers', payload) FROM unnest(?::text[]) AS payload"
+        )).Use { statement ->
+            statement.setArray(1, connection.createArrayOf("TEXT", payloads.toTypedArray()))
+            statement.executeQuery().close()
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package io.kungfury.coworker.internal
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.regex.Pattern
+
+/**
+ * Finds the N-Strand limit for a strand, compiled from an nstrand map.
+ *
+ * Keys are looked up in a hash first, and every plain regex is folded into a single alternation, so a strand is
+ * matched once instead of once per entry. Regexes that can't be folded (flags, or numbered backreferences) are still
+ * checked one by one. Like the map itself, the first entry (in iteration order) that matches a strand wins.
+ *
+ * @param nstrand
+ *  The nstrand map from `CoworkerConfigurationInput.getNstrandMap()`.
+ */
+internal class StrandMatcher(nstrand: Map<Pair<String, Regex>, Int>) {
+    private val limits: IntArray = nstrand.values.toIntArray()
+    private val exact = HashMap<String, Int>()
+    private val combined: Pattern?
+    private val groupEntries: IntArray
+    private val unfolded = ArrayList<Pair<Int, Regex>>()
+    private val cache = ConcurrentHashMap<String, Int>()
+
+    init {
+        val alternatives = ArrayList<String>()
+        val entriesByGroup = ArrayList<Int>()
+        var nextGroup = 1
+
+        nstrand.keys.forEachIndexed { idx, (key, regex) ->
+            exact.putIfAbsent(key, idx)
+
+            val pattern = regex.toPattern()
+            when {
+                pattern.flags() == Pattern.LITERAL -> exact.putIfAbsent(pattern.pattern(), idx)
+                pattern.flags() == 0 && !NUMBERED_BACKREFERENCE.containsMatchIn(pattern.pattern()) -> {
+                    alternatives.add("(${pattern.pattern()})")
+                    while (entriesByGroup.size < nextGroup) {
+                        entriesByGroup.add(-1)
+                    }
+                    entriesByGroup[nextGroup - 1] = idx
+                    nextGroup += 1 + pattern.matcher("").groupCount()
+                }
+                else -> unfolded.add(Pair(idx, regex))
+            }
+        }
+
+        combined = if (alternatives.isEmpty()) null else Pattern.compile(alternatives.joinToString("|"))
+        groupEntries = entriesByGroup.toIntArray()
+    }
+
+    /**
+     * Get the most instances of a strand that may run at once.
+     *
+     * @param strand
+     *  The strand to look up.
+     * @return
+     *  The limit, or -1 if the strand isn't limited.
+     */
+    fun LimitFor(strand: String): Int {
+        val cached = cache[strand]
+        if (cached != null) {
+            return cached
+        }
+
+        val entry = FirstMatchingEntry(strand)
+        val limit = if (entry == -1) -1 else limits[entry]
+        if (cache.size >= MAX_CACHED_STRANDS) {
+            cache.clear()
+        }
+        cache[strand] = limit
+        return limit
+    }
+
+    private fun FirstMatchingEntry(strand: String): Int {
+        var first = exact[strand] ?: Int.MAX_VALUE
+
+        if (combined != null) {
+            val matcher = combined.matcher(strand)
+            if (matcher.matches()) {
+                // Alternatives are tried in order, so the first participating group is the first matching entry.
+                for (group in groupEntries.indices) {
+                    val entry = groupEntries[group]
+                    if (entry != -1 && matcher.start(group + 1) != -1) {
+                        first = minOf(first, entry)
+                        break
+                    }
+                }
+            }
+        }
+
+        for ((idx, regex) in unfolded) {
+            if (idx >= first) {
+                break
+            }
+            if (regex.matches(strand)) {
+                first = idx
+                break
+            }
+        }
+
+        return if (first == Int.MAX_VALUE) -1 else first
+    }
+
+    companion object {
+        private val NUMBERED_BACKREFERENCE = Regex("\\\\[1-9]")
+        private const val MAX_CACHED_STRANDS = 4096
+    }
+}
+
+/**
+ * Keeps a `StrandMatcher` compiled from the latest configuration, only recompiling when the configuration hands back a
+ * different instance.
+ *
+ * @param compile
+ *  Compiles a matcher from the configuration.
+ */
+internal class CachedStrandMatcher<T : Any>(private val compile: (T) -> StrandMatcher) {
+    private var source: T? = null
+    private var matcher: StrandMatcher? = null
+
+    /**
+     * Get the matcher for a configuration.
+     *
+     * @param config
+     *  The configuration as it is now.
+     */
+    fun For(config: T): StrandMatcher {
+        val current = matcher
+        if (current != null && config === source) {
+            return current
+        }
+        val compiled = compile(config)
+        source = config
+        matcher = compiled
+        return compiled
+    }
+}
@@ -0,0 +1,41 @@
+package io.kungfury.coworker.internal
+
+import io.kungfury.coworker.dbs.Marginalia.AddMarginalia
+import io.kungfury.coworker.dbs.Use
+
+import java.sql.Connection
+import java.sql.PreparedStatement
+
+/**
+ * Helpers for statements that touch the strand slots of many pieces of work at once.
+ */
+internal object StrandSlots {
+    /**
+     * Locks the slot rows of every limited strand with running work matching `where`, in strand order. Must be called
+     * inside the transaction that's about to unlock, or delete that work.
+     *
+     * The slot triggers lock slots in whatever order the work rows change, which can differ between two statements
+     * touching many strands (or reconciling every slot). Taking them here first, in the same order reconciling does,
+     * means the triggers only ever take locks this transaction already holds, so the two can't deadlock.
+     *
+     * @param connection
+     *  The connection with an open transaction.
+     * @param uniqueId
+     *  The marginalia id of the caller.
+     * @param where
+     *  A condition on `delayed_work` selecting the work about to change.
+     * @param bind
+     *  Binds the parameters of `where`, starting at 1.
+     */
+    fun LockInOrder(connection: Connection, uniqueId: String, where: String, bind: (PreparedStatement) -> Unit) {
+        connection.prepareStatement(AddMarginalia(
+            uniqueId,
+            "SELECT strand FROM public.delayed_work_strand_slots WHERE strand IN (" +
+                "SELECT strand FROM public.delayed_work WHERE locked_by IS NOT NULL AND ($where)" +
+                ") ORDER BY strand FOR UPDATE"
+        )).Use { statement ->
+            bind(statement)
+            statement.executeQuery().close()
+        }
+    }
+}
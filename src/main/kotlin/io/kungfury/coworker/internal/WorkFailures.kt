@@ -0,0 +1,156 @@
+package io.kungfury.coworker.internal
+
+import io.kungfury.coworker.FailureFingerprint
+import io.kungfury.coworker.FailureFingerprints
+import io.kungfury.coworker.NodeIdentifier
+import io.kungfury.coworker.RetryPolicies
+import io.kungfury.coworker.dbs.Marginalia.AddMarginalia
+import io.kungfury.coworker.dbs.Use
+import io.kungfury.coworker.state.StateCodecs
+
+import java.sql.Connection
+import java.sql.Timestamp
+import java.time.Instant
+
+/**
+ * The shared SQL for handling a piece of work that failed.
+ *
+ * None of these commit, they're meant to be called inside of an `executeTransaction`.
+ */
+object WorkFailures {
+    /**
+     * Retries a piece of work if it's retry policy allows, otherwise moves it to `failed_work`.
+     *
+     * Retrying keeps the work on the same row, at the same stage, and with the state it had when the stage started.
+     * It's only `run_at` that's pushed back according to the policy.
+     *
+     * @param connection
+     *  The connection to run on.
+     * @param id
+     *  The id of the failed work.
+     * @param workName
+     *  The work unique name, used to find the retry policy.
+     * @param failure
+     *  The failure to record if the work isn't retried.
+     * @param state
+     *  The state to record in `failed_work` if the work isn't retried. Null records the state of the row.
+     * @return
+     *  True if the work was rescheduled, false if it was failed (or no longer exists).
+     */
+    @JvmStatic
+    fun RetryOrFail(connection: Connection, id: Long, workName: String, failure: FailureFingerprint, state: String?): Boolean {
+        val row = connection.prepareStatement(AddMarginalia(
+            "WorkFailures_selectAttempts",
+            "SELECT attempts, priority, stage, strand FROM public.delayed_work WHERE id = ? FOR UPDATE"
+        )).Use { select ->
+            select.setLong(1, id)
+            val rs = select.executeQuery()
+            if (!rs.next()) {
+                return false
+            }
+            FailedRow(rs.getInt("attempts") + 1, rs.getInt("priority"), rs.getInt("stage"), rs.getString("strand"))
+        }
+
+        val policy = RetryPolicies.ForWork(workName)
+        if (policy == null || !policy.ShouldRetry(row.attempts)) {
+            Fail(connection, id, workName, failure, state)
+            return false
+        }
+
+        val runAt = Instant.now().plus(policy.BackoffFor(row.attempts))
+        connection.prepareStatement(AddMarginalia(
+            "WorkFailures_reschedule",
+            "UPDATE public.delayed_work SET attempts = ?, run_at = ?, locked_by = NULL WHERE id = ?"
+        )).Use { reschedule ->
+            reschedule.setInt(1, row.attempts)
+            reschedule.setTimestamp(2, Timestamp.from(runAt))
+            reschedule.setLong(3, id)
+            reschedule.execute()
+        }
+
+        Notifications.NotifyWorkers(connection, "WorkFailures_reschedule_notify", listOf(
+            Notifications.Event(id, row.priority, runAt.epochSecond, row.stage, row.strand, workName)
+        ))
+        return true
+    }
+
+    /**
+     * Moves a piece of work to `failed_work`, counting it against its fingerprint.
+     *
+     * Only the failure's summary is stored in `failed_msg`. The full trace is kept in `failure_samples` for the first
+     * `FailureFingerprints.SampleLimit` failures of each fingerprint. Work that's already gone isn't counted.
+     *
+     * @param connection
+     *  The connection to run on.
+     * @param id
+     *  The id of the failed work.
+     * @param workName
+     *  The work unique name.
+     * @param failure
+     *  The failure to record.
+     * @param state
+     *  The state to record. Null records the state of the row.
+     */
+    @JvmStatic
+    fun Fail(connection: Connection, id: Long, workName: String, failure: FailureFingerprint, state: String?) {
+        val moved = connection.prepareStatement(AddMarginalia(
+            "WorkFailures_fail",
+            "WITH failed AS (DELETE FROM public.delayed_work WHERE id = ?" +
+                " RETURNING id, stage, work_unique_name, strand, state, state_bytes)" +
+                " INSERT INTO public.failed_work (id, failed_at, stage, work_unique_name, failed_msg, fingerprint, strand, state, state_bytes, run_by)" +
+                " SELECT id, current_timestamp, stage, work_unique_name, ?, ?, strand," +
+                (if (state == null) " state, state_bytes," else " ?::TEXT, ?::BYTEA,") +
+                " ? FROM failed"
+        )).Use { statement ->
+            statement.setLong(1, id)
+            statement.setString(2, failure.Summary)
+            statement.setString(3, failure.Fingerprint)
+            if (state == null) {
+                statement.setString(4, NodeIdentifier.id)
+            } else {
+                StateCodecs.BindState(statement, 4, 5, state)
+                statement.setString(6, NodeIdentifier.id)
+            }
+            statement.executeUpdate()
+        }
+        if (moved == 0) {
+            return
+        }
+
+        val sampleCount = connection.prepareStatement(AddMarginalia(
+            "WorkFailures_countFingerprint",
+            "INSERT INTO public.failure_fingerprints" +
+                " (fingerprint, work_unique_name, exception_type, summary, occurrences, sample_count, first_seen, last_seen)" +
+                " VALUES (?, ?, ?, ?, 1, 0, current_timestamp, current_timestamp)" +
+                " ON CONFLICT (fingerprint) DO UPDATE SET" +
+                " occurrences = failure_fingerprints.occurrences + 1, last_seen = EXCLUDED.last_seen" +
+                " RETURNING sample_count"
+        )).Use { countFingerprint ->
+            countFingerprint.setString(1, failure.Fingerprint)
+            countFingerprint.setString(2, workName)
+            countFingerprint.setString(3, failure.ExceptionType)
+            countFingerprint.setString(4, failure.Summary)
+            val counted = countFingerprint.executeQuery()
+            if (counted.next()) counted.getInt("sample_count") else Int.MAX_VALUE
+        }
+
+        if (sampleCount < FailureFingerprints.SampleLimit) {
+            connection.prepareStatement(AddMarginalia(
+                "WorkFailures_sample",
+                "WITH sampled AS (" +
+                    "UPDATE public.failure_fingerprints SET sample_count = sample_count + 1" +
+                    " WHERE fingerprint = ? AND sample_count < ? RETURNING fingerprint" +
+                    ") INSERT INTO public.failure_samples (fingerprint, failed_work_id, full_trace, recorded_at)" +
+                    " SELECT fingerprint, ?, ?, current_timestamp FROM sampled"
+            )).Use { sample ->
+                sample.setString(1, failure.Fingerprint)
+                sample.setInt(2, FailureFingerprints.SampleLimit)
+                sample.setLong(3, id)
+                sample.setString(4, failure.FullTrace)
+                sample.execute()
+            }
+        }
+    }
+
+    private class FailedRow(val attempts: Int, val priority: Int, val stage: Int, val strand: String)
+}
@@ -9,4 +9,6 @@ public class WorkNotification {
     public long QueuedAt;
     public int Stage;
     public String Strand;
+    // Null for notifications from writers that don't send the work name.
+    public String WorkName;
 }
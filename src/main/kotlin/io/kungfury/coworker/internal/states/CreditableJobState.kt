@@ -4,10 +4,12 @@ package io.kungfury.coworker.internal.states
  * Internal local state of a creditable job.
  *
  * @param rolling_avg
- *  The rolling average of this creditable job so far.
+ *  The time-decayed average run time of this creditable job in milliseconds.
  * @param total_jobs
  *  The total amount of jobs seen so far.
  * @param in_use
- *  How many credits are in use.
+ *  How many credits (milliseconds of expected run time) are in use.
+ * @param average_weight
+ *  How much recent history the average is based on (the decayed number of runs).
  */
-data class CreditableJobState(val rolling_avg: Long, val total_jobs: Long, val in_use: Long)
+data class CreditableJobState(val rolling_avg: Long, val total_jobs: Long, val in_use: Long, val average_weight: Double = 0.0)
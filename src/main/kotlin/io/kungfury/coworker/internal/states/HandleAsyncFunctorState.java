@@ -16,6 +16,12 @@ public class HandleAsyncFunctorState {
     @JsonProperty
     public boolean isJava;
 
+    /**
+     * The name of a function registered with `AsyncFunctions`. When set `methodState` is not used.
+     */
+    @JsonProperty
+    public String functionName;
+
     @JsonProperty
     public long version;
 }
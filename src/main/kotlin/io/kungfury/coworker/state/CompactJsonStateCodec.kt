@@ -0,0 +1,304 @@
+package io.kungfury.coworker.state
+
+import com.jsoniter.JsonIterator
+import com.jsoniter.ValueType
+
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * A compact binary state codec for JSON states.
+ *
+ * JSON states are transcoded into a tagged binary form: integers become zig-zag varints, arrays of only integers are
+ * packed without per element tags, strings and object keys are length prefixed, and all whitespace, quotes, and
+ * separators are dropped. This makes states holding lots of numbers (like a serialized closure, which jsoniter writes
+ * as an array of bytes) several times smaller. States that aren't valid JSON are stored as raw UTF-8, so any state can
+ * be written with this codec.
+ *
+ * Decoding always returns minified JSON, which is equal in meaning (but not necessarily byte for byte) to what was
+ * encoded.
+ */
+object CompactJsonStateCodec : StateCodec {
+    override val Marker: Byte = 1
+
+    private const val TAG_NULL = 0x00
+    private const val TAG_FALSE = 0x01
+    private const val TAG_TRUE = 0x02
+    private const val TAG_INT = 0x03
+    private const val TAG_NUMBER = 0x04
+    private const val TAG_STRING = 0x05
+    private const val TAG_ARRAY = 0x06
+    private const val TAG_OBJECT = 0x07
+    private const val TAG_END = 0x08
+    private const val TAG_RAW = 0x09
+    private const val TAG_INT_ARRAY = 0x0A
+
+    // Appended to a state before parsing it, so we can tell the end of the state apart from trailing garbage.
+    private const val SENTINEL = " 0"
+
+    override fun encode(state: String, output: OutputStream) {
+        val transcoded = ByteArrayOutputStream(state.length / 2 + 16)
+        val isJson = try {
+            val iter = JsonIterator.parse(state + SENTINEL)
+            writeValue(iter, transcoded)
+            isFullyConsumed(iter)
+        } catch (err: Exception) {
+            false
+        }
+
+        if (isJson) {
+            transcoded.writeTo(output)
+        } else {
+            output.write(TAG_RAW)
+            writeBytes(state.toByteArray(Charsets.UTF_8), output)
+        }
+    }
+
+    override fun decode(input: InputStream): String {
+        val tag = input.read()
+        if (tag == -1) {
+            throw EOFException("Compact state was empty.")
+        }
+        if (tag == TAG_RAW) {
+            return String(readBytes(input), Charsets.UTF_8)
+        }
+
+        val builder = StringBuilder()
+        readValue(tag, input, builder)
+        return builder.toString()
+    }
+
+    private fun isFullyConsumed(iter: JsonIterator): Boolean {
+        if (iter.whatIsNext() != ValueType.NUMBER || iter.readNumberAsString() != SENTINEL.trim()) {
+            return false
+        }
+        return try {
+            iter.whatIsNext() == ValueType.INVALID
+        } catch (err: Exception) {
+            true
+        }
+    }
+
+    private fun exactLong(literal: String): Long? {
+        val asLong = literal.toLongOrNull()
+        // Only take the varint path if we'd write back the exact same literal.
+        return if (asLong != null && asLong.toString() == literal) asLong else null
+    }
+
+    private fun writeValue(iter: JsonIterator, output: OutputStream) {
+        when (iter.whatIsNext()) {
+            ValueType.NULL -> {
+                iter.readNull()
+                output.write(TAG_NULL)
+            }
+            ValueType.BOOLEAN -> output.write(if (iter.readBoolean()) TAG_TRUE else TAG_FALSE)
+            ValueType.NUMBER -> writeNumber(iter.readNumberAsString(), output)
+            ValueType.STRING -> {
+                output.write(TAG_STRING)
+                writeBytes(iter.readString().toByteArray(Charsets.UTF_8), output)
+            }
+            ValueType.ARRAY -> writeArray(iter, output)
+            ValueType.OBJECT -> {
+                output.write(TAG_OBJECT)
+                var field = iter.readObject()
+                while (field != null) {
+                    output.write(TAG_STRING)
+                    writeBytes(field.toByteArray(Charsets.UTF_8), output)
+                    writeValue(iter, output)
+                    field = iter.readObject()
+                }
+                output.write(TAG_END)
+            }
+            else -> throw IOException("State is not valid JSON.")
+        }
+    }
+
+    private fun writeNumber(literal: String, output: OutputStream) {
+        val asLong = exactLong(literal)
+        if (asLong != null) {
+            output.write(TAG_INT)
+            writeZigZag(asLong, output)
+        } else {
+            output.write(TAG_NUMBER)
+            writeBytes(literal.toByteArray(Charsets.US_ASCII), output)
+        }
+    }
+
+    private fun writeArray(iter: JsonIterator, output: OutputStream) {
+        // Optimistically assume the array is all integers, so it can be packed.
+        val ints = ArrayList<Long>()
+        while (iter.readArray()) {
+            if (iter.whatIsNext() == ValueType.NUMBER) {
+                val literal = iter.readNumberAsString()
+                val asLong = exactLong(literal)
+                if (asLong != null) {
+                    ints.add(asLong)
+                    continue
+                }
+
+                writeMixedArrayHead(ints, output)
+                writeNumber(literal, output)
+            } else {
+                writeMixedArrayHead(ints, output)
+                writeValue(iter, output)
+            }
+
+            while (iter.readArray()) {
+                writeValue(iter, output)
+            }
+            output.write(TAG_END)
+            return
+        }
+
+        output.write(TAG_INT_ARRAY)
+        writeVarLong(ints.size.toLong(), output)
+        for (value in ints) {
+            writeZigZag(value, output)
+        }
+    }
+
+    private fun writeMixedArrayHead(ints: List<Long>, output: OutputStream) {
+        output.write(TAG_ARRAY)
+        for (value in ints) {
+            output.write(TAG_INT)
+            writeZigZag(value, output)
+        }
+    }
+
+    private fun readValue(tag: Int, input: InputStream, builder: StringBuilder) {
+        when (tag) {
+            TAG_NULL -> builder.append("null")
+            TAG_FALSE -> builder.append("false")
+            TAG_TRUE -> builder.append("true")
+            TAG_INT -> builder.append(readZigZag(input))
+            TAG_INT_ARRAY -> {
+                builder.append('[')
+                val size = readVarLong(input)
+                for (idx in 0 until size) {
+                    if (idx != 0L) {
+                        builder.append(',')
+                    }
+                    builder.append(readZigZag(input))
+                }
+                builder.append(']')
+            }
+            TAG_NUMBER -> builder.append(String(readBytes(input), Charsets.US_ASCII))
+            TAG_STRING -> appendString(String(readBytes(input), Charsets.UTF_8), builder)
+            TAG_ARRAY -> {
+                builder.append('[')
+                var first = true
+                var next = readTag(input)
+                while (next != TAG_END) {
+                    if (!first) {
+                        builder.append(',')
+                    }
+                    first = false
+                    readValue(next, input, builder)
+                    next = readTag(input)
+                }
+                builder.append(']')
+            }
+            TAG_OBJECT -> {
+                builder.append('{')
+                var first = true
+                var next = readTag(input)
+                while (next != TAG_END) {
+                    if (!first) {
+                        builder.append(',')
+                    }
+                    first = false
+                    if (next != TAG_STRING) {
+                        throw IOException("Expected an object key in compact state, found tag: $next")
+                    }
+                    appendString(String(readBytes(input), Charsets.UTF_8), builder)
+                    builder.append(':')
+                    readValue(readTag(input), input, builder)
+                    next = readTag(input)
+                }
+                builder.append('}')
+            }
+            else -> throw IOException("Unknown compact state tag: $tag")
+        }
+    }
+
+    private fun appendString(value: String, builder: StringBuilder) {
+        builder.append('"')
+        for (char in value) {
+            when (char) {
+                '"' -> builder.append("\\\"")
+                '\\' -> builder.append("\\\\")
+                '\n' -> builder.append("\\n")
+                '\r' -> builder.append("\\r")
+                '\t' -> builder.append("\\t")
+                '\b' -> builder.append("\\b")
+                '\u000C' -> builder.append("\\f")
+                else -> if (char < ' ') {
+                    builder.append(String.format("\\u%04x", char.toInt()))
+                } else {
+                    builder.append(char)
+                }
+            }
+        }
+        builder.append('"')
+    }
+
+    private fun readTag(input: InputStream): Int {
+        val tag = input.read()
+        if (tag == -1) {
+            throw EOFException("Compact state ended early.")
+        }
+        return tag
+    }
+
+    private fun writeBytes(bytes: ByteArray, output: OutputStream) {
+        writeVarLong(bytes.size.toLong(), output)
+        output.write(bytes)
+    }
+
+    private fun readBytes(input: InputStream): ByteArray {
+        val length = readVarLong(input).toInt()
+        val bytes = ByteArray(length)
+        var offset = 0
+        while (offset < length) {
+            val read = input.read(bytes, offset, length - offset)
+            if (read == -1) {
+                throw EOFException("Compact state ended early.")
+            }
+            offset += read
+        }
+        return bytes
+    }
+
+    private fun writeZigZag(value: Long, output: OutputStream) = writeVarLong((value shl 1) xor (value shr 63), output)
+
+    private fun readZigZag(input: InputStream): Long {
+        val zigzag = readVarLong(input)
+        return (zigzag ushr 1) xor -(zigzag and 1)
+    }
+
+    private fun writeVarLong(value: Long, output: OutputStream) {
+        var remaining = value
+        while (remaining and 0x7FL.inv() != 0L) {
+            output.write(((remaining and 0x7F) or 0x80).toInt())
+            remaining = remaining ushr 7
+        }
+        output.write(remaining.toInt())
+    }
+
+    private fun readVarLong(input: InputStream): Long {
+        var result = 0L
+        var shift = 0
+        var next = readTag(input)
+        while (true) {
+            result = result or ((next and 0x7F).toLong() shl shift)
+            if (next and 0x80 == 0) {
+                return result
+            }
+            shift += 7
+            next = readTag(input)
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package io.kungfury.coworker.state
+
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * The default state codec. States are stored as is (in the `state` TEXT column when this is the default codec).
+ */
+object JsonStateCodec : StateCodec {
+    override val Marker: Byte = 0
+
+    override fun encode(state: String, output: OutputStream) {
+        output.write(state.toByteArray(Charsets.UTF_8))
+    }
+
+    override fun decode(input: InputStream): String = String(input.readBytes(), Charsets.UTF_8)
+}
@@ -0,0 +1,38 @@
+package io.kungfury.coworker.state
+
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * Describes how the state of a piece of work is turned into bytes when it's stored in the `state_bytes` column.
+ *
+ * Every stored state is prefixed with the `Marker` of the codec that wrote it, so rows written by one codec can
+ * always be read back, even after the default codec has been changed.
+ */
+interface StateCodec {
+    /**
+     * The marker byte written ahead of every state encoded by this codec. This must be unique across all registered
+     * codecs, must be below 0x80 (the high bit is reserved), and must never change once rows have been written with it.
+     */
+    val Marker: Byte
+
+    /**
+     * Encodes a state, writing it to an output stream.
+     *
+     * @param state
+     *  The serialized state of the piece of work.
+     * @param output
+     *  The stream to write the encoded state to.
+     */
+    fun encode(state: String, output: OutputStream)
+
+    /**
+     * Decodes a state that was previously written by `encode`.
+     *
+     * @param input
+     *  The stream to read the encoded state from (positioned just after the marker).
+     * @return
+     *  The serialized state of the piece of work.
+     */
+    fun decode(input: InputStream): String
+}
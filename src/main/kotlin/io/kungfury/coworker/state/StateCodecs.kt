@@ -0,0 +1,214 @@
+package io.kungfury.coworker.state
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.sql.PreparedStatement
+import java.sql.ResultSet
+import java.sql.Types
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+
+/**
+ * The registry of state codecs, and the helpers used to read/write state to the database.
+ *
+ * States are stored in one of two columns:
+ *
+ *  - `state` (TEXT): Used when the default codec is the `JsonStateCodec`, and by every row written before codecs.
+ *  - `state_bytes` (BYTEA): A marker byte naming the codec, followed by the encoded state.
+ *
+ * Reads always check `state_bytes` first, and fall back to `state`. So changing the default codec only changes how
+ * new states are written, and never breaks reading existing rows.
+ *
+ * States at or above `CompressionThreshold` bytes are always written to `state_bytes` deflated, with the high bit of
+ * the marker set. They're inflated (streaming) when read back, so jobs never see the compressed form.
+ */
+object StateCodecs {
+    private val codecs = ConcurrentHashMap<Byte, StateCodec>()
+
+    init {
+        Register(JsonStateCodec)
+        Register(CompactJsonStateCodec)
+    }
+
+    /**
+     * The codec used to write new states. Defaults to `JsonStateCodec`.
+     */
+    @JvmStatic
+    @Volatile
+    var Default: StateCodec = JsonStateCodec
+        set(value) {
+            Register(value)
+            field = value
+        }
+
+    /**
+     * Registers a codec so states written with it can be read back.
+     *
+     * @param codec
+     *  The codec to register.
+     * @throws IllegalStateException
+     *  If the codec's marker is invalid, or already taken by a different codec.
+     */
+    @JvmStatic
+    @Throws(IllegalStateException::class)
+    fun Register(codec: StateCodec) {
+        if (codec.Marker < 0) {
+            throw IllegalStateException("State codec markers must be below 0x80.")
+        }
+        val existing = codecs.putIfAbsent(codec.Marker, codec)
+        if (existing != null && existing !== codec) {
+            throw IllegalStateException("State codec marker ${codec.Marker} is already registered.")
+        }
+    }
+
+    /**
+     * States whose encoded size is at least this many bytes are deflated before being stored. Defaults to 32KiB.
+     * Set to `Int.MAX_VALUE` to never compress.
+     */
+    @JvmStatic
+    @Volatile
+    var CompressionThreshold: Int = 32 * 1024
+
+    /**
+     * The deflate level used for compressed states. Defaults to the fastest level, since states are rewritten often.
+     */
+    @JvmStatic
+    @Volatile
+    var CompressionLevel: Int = Deflater.BEST_SPEED
+
+    // Set on the marker byte of states that have been deflated.
+    private const val COMPRESSED_FLAG = 0x80
+
+    // Deflaters hold native memory, so keep one per thread instead of allocating one per write.
+    private val deflaters = ThreadLocal<Deflater>()
+
+    /**
+     * Binds a state to the `state`, and `state_bytes` parameters of a statement using the default codec.
+     *
+     * @param statement
+     *  The statement to bind to.
+     * @param textIndex
+     *  The index of the `state` parameter.
+     * @param bytesIndex
+     *  The index of the `state_bytes` parameter.
+     * @param state
+     *  The serialized state to store.
+     */
+    @JvmStatic
+    fun BindState(statement: PreparedStatement, textIndex: Int, bytesIndex: Int, state: String) {
+        val encoded = Encode(state)
+        if (encoded == null) {
+            statement.setString(textIndex, state)
+            statement.setNull(bytesIndex, Types.BINARY)
+        } else {
+            statement.setNull(textIndex, Types.VARCHAR)
+            statement.setBinaryStream(bytesIndex, encoded.asInputStream(), encoded.size())
+        }
+    }
+
+    /**
+     * Reads the state out of the current row of a result set.
+     *
+     * @param rs
+     *  The result set positioned at the row to read.
+     * @param textColumn
+     *  The name of the TEXT state column.
+     * @param bytesColumn
+     *  The name of the BYTEA state column.
+     * @return
+     *  The serialized state. An empty string if the row has no state.
+     */
+    @JvmStatic
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun ReadState(rs: ResultSet, textColumn: String = "state", bytesColumn: String = "state_bytes"): String {
+        val stream = rs.getBinaryStream(bytesColumn) ?: return rs.getString(textColumn) ?: ""
+        return stream.use { Decode(it) }
+    }
+
+    /**
+     * Encodes a state for statements that can't use `BindState`, like ones that bind arrays of states.
+     *
+     * @return
+     *  The bytes to store in `state_bytes`, or null if the state should be stored as TEXT.
+     */
+    internal fun EncodeToBytes(state: String): ByteArray? = Encode(state)?.toByteArray()
+
+    /**
+     * Encodes a state into what should be stored in `state_bytes`.
+     *
+     * @return
+     *  The marker prefixed (and possibly compressed) state, or null if the state should be stored as TEXT.
+     */
+    internal fun Encode(state: String): ExposedByteArrayOutputStream? {
+        val codec = Default
+        val threshold = CompressionThreshold
+        // A char takes at most 3 bytes in UTF-8, so this skips encoding states that can't reach the threshold.
+        if (codec === JsonStateCodec && state.length.toLong() * 3 < threshold) {
+            return null
+        }
+
+        val buffer = ExposedByteArrayOutputStream(state.length / 2 + 16)
+        buffer.write(codec.Marker.toInt())
+        codec.encode(state, buffer)
+        // Compared against the encoded bytes, not chars, so multi-byte states are compressed at the same size.
+        if (buffer.size() - 1 < threshold) {
+            return if (codec === JsonStateCodec) null else buffer
+        }
+
+        val deflater = deflaters.get() ?: Deflater(CompressionLevel).also { deflaters.set(it) }
+        deflater.reset()
+        deflater.setLevel(CompressionLevel)
+
+        val compressed = ExposedByteArrayOutputStream(buffer.size() / 4 + 16)
+        compressed.write(codec.Marker.toInt() or COMPRESSED_FLAG)
+        val deflaterStream = DeflaterOutputStream(compressed, deflater)
+        buffer.writePayloadTo(deflaterStream)
+        deflaterStream.finish()
+
+        // Incompressible states aren't worth paying inflate for on every claim.
+        return if (compressed.size() < buffer.size()) compressed else buffer
+    }
+
+    /**
+     * Decodes a marker prefixed (and possibly compressed) state read out of `state_bytes`.
+     */
+    @Throws(IOException::class)
+    internal fun Decode(input: InputStream): String {
+        val marker = input.read()
+        if (marker == -1) {
+            return ""
+        }
+        val codecMarker = (marker and COMPRESSED_FLAG.inv()).toByte()
+        val codec = codecs[codecMarker] ?: throw IOException("No state codec registered for marker: $codecMarker")
+
+        return if (marker and COMPRESSED_FLAG != 0) {
+            val inflater = Inflater()
+            try {
+                codec.decode(InflaterInputStream(input, inflater))
+            } finally {
+                inflater.end()
+            }
+        } else {
+            codec.decode(input)
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that can be read back without copying it's buffer.
+     */
+    internal class ExposedByteArrayOutputStream(size: Int) : ByteArrayOutputStream(size) {
+        fun asInputStream(): ByteArrayInputStream = ByteArrayInputStream(buf, 0, count)
+
+        /**
+         * Writes everything but the leading marker byte to another stream.
+         */
+        fun writePayloadTo(output: OutputStream) = output.write(buf, 1, count - 1)
+    }
+}
@@ -0,0 +1,10 @@
+-- Nodes before 1.2.1 keep upserting delayed_work_credit_use on (job_name, strand_name, stage), so it's left as it is,
+-- and sharded use gets a table of it's own.
+CREATE UNLOGGED TABLE IF NOT EXISTS public.delayed_work_credit_use_shards (
+	job_name VARCHAR(255),
+	strand_name VARCHAR(255),
+	stage INTEGER,
+	shard INTEGER,
+	in_use BIGINT NOT NULL DEFAULT 0,
+	PRIMARY KEY(job_name, strand_name, stage, shard)
+);
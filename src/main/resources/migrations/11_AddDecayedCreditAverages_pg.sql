@@ -0,0 +1,13 @@
+ALTER TABLE public.delayed_work_credits ADD COLUMN IF NOT EXISTS average_ms DOUBLE PRECISION NOT NULL DEFAULT 0;
+ALTER TABLE public.delayed_work_credits ADD COLUMN IF NOT EXISTS average_weight DOUBLE PRECISION NOT NULL DEFAULT 0;
+ALTER TABLE public.delayed_work_credits ADD COLUMN IF NOT EXISTS averaged_at TIMESTAMP;
+
+UPDATE public.delayed_work_credits SET
+	average_ms = rolling_average_seconds * 1000,
+	average_weight = LEAST(total_jobs, 1),
+	averaged_at = current_timestamp
+WHERE averaged_at IS NULL;
+
+-- Sharded credits in use are counted in milliseconds. Nodes before 1.2.1 never touch the sharded table, they keep
+-- counting seconds in delayed_work_credit_use.
+ALTER TABLE public.delayed_work_credit_use_shards ADD COLUMN IF NOT EXISTS in_use_ms BIGINT NOT NULL DEFAULT 0;
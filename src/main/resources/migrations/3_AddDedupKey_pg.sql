@@ -0,0 +1,3 @@
+ALTER TABLE public.delayed_work ADD COLUMN IF NOT EXISTS dedup_key VARCHAR(255);
+
+CREATE UNIQUE INDEX IF NOT EXISTS index_delayed_work_on_dedup_key ON public.delayed_work(dedup_key) WHERE dedup_key IS NOT NULL;
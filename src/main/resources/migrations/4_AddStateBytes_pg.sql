@@ -0,0 +1,3 @@
+ALTER TABLE public.delayed_work ADD COLUMN IF NOT EXISTS state_bytes BYTEA;
+
+ALTER TABLE public.failed_work ADD COLUMN IF NOT EXISTS state_bytes BYTEA;
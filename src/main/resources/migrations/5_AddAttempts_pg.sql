@@ -0,0 +1 @@
+ALTER TABLE public.delayed_work ADD COLUMN IF NOT EXISTS attempts INTEGER NOT NULL DEFAULT 0;
@@ -0,0 +1,23 @@
+CREATE TABLE IF NOT EXISTS public.failure_fingerprints (
+    fingerprint VARCHAR(64) PRIMARY KEY,
+    work_unique_name VARCHAR(255),
+    exception_type VARCHAR(255),
+    summary TEXT,
+    occurrences BIGINT NOT NULL DEFAULT 0,
+    sample_count INTEGER NOT NULL DEFAULT 0,
+    first_seen TIMESTAMP,
+    last_seen TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS public.failure_samples (
+    id BIGSERIAL PRIMARY KEY,
+    fingerprint VARCHAR(64),
+    failed_work_id BIGINT,
+    full_trace TEXT,
+    recorded_at TIMESTAMP
+);
+
+ALTER TABLE public.failed_work ADD COLUMN IF NOT EXISTS fingerprint VARCHAR(64);
+
+CREATE INDEX IF NOT EXISTS index_failed_work_on_fingerprint ON public.failed_work(fingerprint);
+CREATE INDEX IF NOT EXISTS index_failure_samples_on_fingerprint ON public.failure_samples(fingerprint);
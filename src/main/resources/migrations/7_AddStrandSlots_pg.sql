@@ -0,0 +1,21 @@
+CREATE TABLE IF NOT EXISTS public.delayed_work_strand_slots (
+	strand VARCHAR(255) PRIMARY KEY,
+	in_use INTEGER NOT NULL DEFAULT 0
+);
+
+CREATE OR REPLACE FUNCTION public.coworker_release_strand_slot() RETURNS TRIGGER AS $$
+BEGIN
+	UPDATE public.delayed_work_strand_slots SET in_use = GREATEST(in_use - 1, 0) WHERE strand = OLD.strand;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS release_strand_slot_on_unlock ON public.delayed_work;
+CREATE TRIGGER release_strand_slot_on_unlock AFTER UPDATE OF locked_by ON public.delayed_work
+	FOR EACH ROW WHEN (OLD.locked_by IS NOT NULL AND NEW.locked_by IS NULL)
+	EXECUTE PROCEDURE public.coworker_release_strand_slot();
+
+DROP TRIGGER IF EXISTS release_strand_slot_on_delete ON public.delayed_work;
+CREATE TRIGGER release_strand_slot_on_delete AFTER DELETE ON public.delayed_work
+	FOR EACH ROW WHEN (OLD.locked_by IS NOT NULL)
+	EXECUTE PROCEDURE public.coworker_release_strand_slot();
@@ -0,0 +1,11 @@
+CREATE OR REPLACE FUNCTION public.coworker_claim_strand_slot() RETURNS TRIGGER AS $$
+BEGIN
+	UPDATE public.delayed_work_strand_slots SET in_use = in_use + 1 WHERE strand = NEW.strand;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS claim_strand_slot_on_lock ON public.delayed_work;
+CREATE TRIGGER claim_strand_slot_on_lock AFTER UPDATE OF locked_by ON public.delayed_work
+	FOR EACH ROW WHEN (OLD.locked_by IS NULL AND NEW.locked_by IS NOT NULL)
+	EXECUTE PROCEDURE public.coworker_claim_strand_slot();
@@ -0,0 +1,2 @@
+CREATE INDEX IF NOT EXISTS index_delayed_work_on_strand_and_id ON public.delayed_work(strand, id);
+DROP INDEX IF EXISTS public.index_delayed_work_on_strand;
@@ -0,0 +1,67 @@
+package io.kungfury.coworker
+
+import com.jsoniter.any.Any
+
+import io.kotlintest.shouldBe
+import io.kotlintest.shouldThrow
+import io.kotlintest.specs.FunSpec
+
+var lastReflectiveValue = 0
+
+fun ReflectiveAsyncFunction(args: Array<Any>) {
+    lastReflectiveValue = args.first().toInt()
+}
+
+fun ThrowingAsyncFunction(@Suppress("UNUSED_PARAMETER") args: Array<Any>) {
+    throw IllegalArgumentException("bad args")
+}
+
+class AsyncFunctionsSpec : FunSpec({
+    test("resolves registered functions") {
+        var seen = 0
+        AsyncFunctions.Register("AsyncFunctionsSpec_registered") { args -> seen = args.first().toInt() }
+
+        AsyncFunctions.Resolve("AsyncFunctionsSpec_registered")(arrayOf(Any.wrap(10)))
+        seen shouldBe 10
+
+        AsyncFunctions.Unregister("AsyncFunctionsSpec_registered")
+        shouldThrow<IllegalStateException> {
+            AsyncFunctions.Resolve("AsyncFunctionsSpec_registered")
+        }
+    }
+
+    test("resolves static functions by class and method name in allowed packages") {
+        shouldThrow<IllegalStateException> {
+            AsyncFunctions.Resolve("io.kungfury.coworker.AsyncFunctionsSpecKt#ReflectiveAsyncFunction")
+        }
+
+        AsyncFunctions.AllowPackage("io.kungfury.coworker")
+        AsyncFunctions.Resolve("io.kungfury.coworker.AsyncFunctionsSpecKt#ReflectiveAsyncFunction")(arrayOf(Any.wrap(5)))
+        lastReflectiveValue shouldBe 5
+
+        AsyncFunctions.DisallowPackage("io.kungfury.coworker")
+        shouldThrow<IllegalStateException> {
+            AsyncFunctions.Resolve("io.kungfury.coworker.AsyncFunctionsSpecKt#ReflectiveAsyncFunction")
+        }
+    }
+
+    test("throws what reflective functions throw") {
+        AsyncFunctions.AllowPackage("io.kungfury.coworker")
+        val err = shouldThrow<IllegalArgumentException> {
+            AsyncFunctions.Resolve("io.kungfury.coworker.AsyncFunctionsSpecKt#ThrowingAsyncFunction")(arrayOf())
+        }
+        err.message shouldBe "bad args"
+        AsyncFunctions.DisallowPackage("io.kungfury.coworker")
+    }
+
+    test("throws for functions that can't be resolved") {
+        AsyncFunctions.AllowPackage("io.kungfury.coworker")
+        shouldThrow<IllegalStateException> {
+            AsyncFunctions.Resolve("io.kungfury.coworker.DoesNotExist#nope")
+        }
+        shouldThrow<IllegalStateException> {
+            AsyncFunctions.Resolve("io.kungfury.coworker.AsyncFunctionsSpecKt#nope")
+        }
+        AsyncFunctions.DisallowPackage("io.kungfury.coworker")
+    }
+})
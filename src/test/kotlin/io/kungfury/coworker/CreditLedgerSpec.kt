@@ -0,0 +1,85 @@
+package io.kungfury.coworker
+
+import io.kotlintest.shouldBe
+import io.kotlintest.specs.FunSpec
+import io.kungfury.coworker.internal.states.CreditableJobState
+
+@UseExperimental(CreditApi::class)
+class CreditLedgerSpec : FunSpec({
+    test("local usage is layered on top of what was read") {
+        val entry = CreditLedger.Entry()
+        entry.Refresh(CreditableJobState(10, 4, 20), 0, entry.Written())
+        entry.Acquire(10) shouldBe 30
+        entry.View() shouldBe CreditableJobState(10, 4, 30, 0.0)
+    }
+
+    test("finished jobs move the average, weighted by recent history") {
+        val entry = CreditLedger.Entry()
+        entry.Refresh(CreditableJobState(10, 40, 0, 4.0), 0, entry.Written())
+        entry.Acquire(10)
+        entry.Complete(10, 20)
+        entry.View() shouldBe CreditableJobState(12, 41, 0, 5.0)
+        entry.TakePending() shouldBe CreditLedger.Pending(0, 20, 1)
+        entry.TakePending() shouldBe null
+    }
+
+    test("written changes aren't counted twice after a read") {
+        val entry = CreditLedger.Entry()
+        entry.Refresh(CreditableJobState(0, 0, 0), 0, entry.Written())
+        entry.Acquire(5)
+        entry.Acknowledge(entry.TakePending()!!)
+        entry.Acquire(3)
+        // The database now has the first 5, but not the 3.
+        entry.Refresh(CreditableJobState(0, 0, 5), 1, entry.Written())
+        entry.View().in_use shouldBe 8
+    }
+
+    test("changes still being written are counted until a read includes them") {
+        val entry = CreditLedger.Entry()
+        entry.Refresh(CreditableJobState(0, 0, 0), 0, entry.Written())
+        entry.Acquire(5)
+        val inFlight = entry.TakePending()!!
+        // The read started before the flush committed, so it doesn't have the 5.
+        val written = entry.Written()
+        entry.Acknowledge(inFlight)
+        entry.Refresh(CreditableJobState(0, 0, 0), 1, written)
+        entry.View().in_use shouldBe 5
+        // A later read does.
+        entry.Refresh(CreditableJobState(0, 0, 5), 2, entry.Written())
+        entry.View().in_use shouldBe 5
+    }
+
+    test("failed writes are kept for the next flush") {
+        val entry = CreditLedger.Entry()
+        entry.Acquire(5)
+        val pending = entry.TakePending()!!
+        entry.Acquire(1)
+        entry.Restore(pending)
+        entry.TakePending() shouldBe CreditLedger.Pending(6, 0, 0)
+    }
+
+    test("reads go stale after the ttl") {
+        val entry = CreditLedger.Entry()
+        entry.IsStale(0, 10) shouldBe true
+        entry.Refresh(CreditableJobState(0, 0, 0), 100, entry.Written())
+        entry.IsStale(105, 10) shouldBe false
+        entry.IsStale(110, 10) shouldBe true
+    }
+
+    test("only one background refresh runs at a time") {
+        val entry = CreditLedger.Entry()
+        entry.StartRefresh(0, 10) shouldBe true
+        entry.StartRefresh(0, 10) shouldBe false
+        entry.Refresh(CreditableJobState(0, 0, 0), 100, entry.Written())
+        entry.EndRefresh()
+        entry.StartRefresh(105, 10) shouldBe false
+        entry.StartRefresh(110, 10) shouldBe true
+    }
+
+    test("nodes always write to the same shard, within range") {
+        val shard = CreditLedger.ShardFor("10.0.0.1", 16)
+        CreditLedger.ShardFor("10.0.0.1", 16) shouldBe shard
+        (0 until 1000).map { CreditLedger.ShardFor("node-$it", 16) }.all { it in 0 until 16 } shouldBe true
+        CreditLedger.ShardFor("10.0.0.1", 0) shouldBe 0
+    }
+})
@@ -0,0 +1,49 @@
+package io.kungfury.coworker
+
+import io.kotlintest.matchers.doubles.plusOrMinus
+import io.kotlintest.shouldBe
+import io.kotlintest.specs.FunSpec
+
+import java.time.Duration
+
+class DurationStatsSpec : FunSpec({
+    val minute = Duration.ofMinutes(1).toNanos()
+
+    test("is empty until something is recorded") {
+        val stats = DurationStats()
+        stats.Mean() shouldBe 0.0
+        stats.Percentile(0.95) shouldBe 0.0
+    }
+
+    test("keeps sub-second precision") {
+        val stats = DurationStats()
+        stats.Record(250, 0)
+        stats.Record(350, 0)
+        stats.Mean() shouldBe 300.0
+    }
+
+    test("old durations count half as much after a half life") {
+        val stats = DurationStats(Duration.ofMinutes(1))
+        stats.Record(1000, 0)
+        stats.Record(100, minute)
+        // 1000 at half weight, and 100 at full weight.
+        stats.Mean() shouldBe 400.0.plusOrMinus(0.001)
+        stats.Weight(minute) shouldBe 1.5.plusOrMinus(0.001)
+        stats.Weight(2 * minute) shouldBe 0.75.plusOrMinus(0.001)
+    }
+
+    test("percentiles land within a bucket of the real value") {
+        val stats = DurationStats()
+        (1L..100L).forEach { stats.Record(it * 10, 0) }
+        stats.Percentile(0.5) shouldBe 500.0.plusOrMinus(100.0)
+        stats.Percentile(0.95) shouldBe 950.0.plusOrMinus(190.0)
+        stats.Percentile(1.0) shouldBe 1000.0.plusOrMinus(190.0)
+    }
+
+    test("percentiles follow recent behaviour") {
+        val stats = DurationStats(Duration.ofMinutes(1))
+        repeat(100) { stats.Record(5000, 0) }
+        repeat(100) { stats.Record(10, 10 * minute) }
+        stats.Percentile(0.95) shouldBe 10.0.plusOrMinus(2.0)
+    }
+})
@@ -0,0 +1,41 @@
+package io.kungfury.coworker
+
+import io.kotlintest.shouldBe
+import io.kotlintest.shouldNotBe
+import io.kotlintest.specs.FunSpec
+
+import java.io.IOException
+import java.io.UncheckedIOException
+
+fun ThrowFrom(id: Int): Exception = try {
+    throw IOException("Connection refused for job $id")
+} catch (err: IOException) {
+    UncheckedIOException("Wrapped", err)
+}
+
+class FailureFingerprintsSpec : FunSpec({
+    test("the same failure from the same place shares a fingerprint") {
+        val first = FailureFingerprints.FromThrowable("Work", ThrowFrom(1))
+        val second = FailureFingerprints.FromThrowable("Work", ThrowFrom(2))
+        first.Fingerprint shouldBe second.Fingerprint
+        first.ExceptionType shouldBe "java.io.IOException"
+        first.Summary.startsWith("java.io.IOException: Connection refused for job 1\n  at ") shouldBe true
+        first.FullTrace.contains("UncheckedIOException") shouldBe true
+    }
+
+    test("different work, and different exceptions have different fingerprints") {
+        val failure = FailureFingerprints.FromThrowable("Work", ThrowFrom(1))
+        FailureFingerprints.FromThrowable("OtherWork", ThrowFrom(1)).Fingerprint shouldNotBe failure.Fingerprint
+        FailureFingerprints.FromThrowable("Work", IllegalStateException("x")).Fingerprint shouldNotBe failure.Fingerprint
+    }
+
+    test("messages are grouped ignoring numbers, and truncated") {
+        FailureFingerprints.FromMessage("Work", "Timed out after 30s on 12").Fingerprint shouldBe
+            FailureFingerprints.FromMessage("Work", "Timed out after 45s on 99\nmore").Fingerprint
+
+        val long = "x".repeat(FailureFingerprints.MaxMessageLength * 2)
+        val failure = FailureFingerprints.FromMessage("Work", long)
+        (failure.Summary.length < long.length) shouldBe true
+        failure.FullTrace shouldBe long
+    }
+})
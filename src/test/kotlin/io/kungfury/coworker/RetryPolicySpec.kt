@@ -0,0 +1,54 @@
+package io.kungfury.coworker
+
+import io.kotlintest.shouldBe
+import io.kotlintest.specs.FunSpec
+
+import java.time.Duration
+
+@Retry(maxAttempts = 3, initialBackoffMs = 50)
+class AnnotatedRetryWork
+
+class RetryPolicySpec : FunSpec({
+    test("backoff grows exponentially, and is capped") {
+        val policy = RetryPolicy(10, Duration.ofSeconds(1), Duration.ofSeconds(10), 2.0, 0.0)
+        policy.BackoffFor(1) shouldBe Duration.ofSeconds(1)
+        policy.BackoffFor(2) shouldBe Duration.ofSeconds(2)
+        policy.BackoffFor(3) shouldBe Duration.ofSeconds(4)
+        policy.BackoffFor(5) shouldBe Duration.ofSeconds(10)
+        policy.BackoffFor(500) shouldBe Duration.ofSeconds(10)
+    }
+
+    test("jitter moves the backoff within bounds") {
+        val policy = RetryPolicy(10, Duration.ofSeconds(1), Duration.ofSeconds(10), 2.0, 0.5)
+        policy.BackoffFor(1, 0.0) shouldBe Duration.ofMillis(500)
+        policy.BackoffFor(1, 0.5) shouldBe Duration.ofSeconds(1)
+        policy.BackoffFor(1, 1.0) shouldBe Duration.ofMillis(1500)
+        policy.BackoffFor(10, 1.0) shouldBe Duration.ofSeconds(10)
+    }
+
+    test("retries until max attempts") {
+        val policy = RetryPolicy(3)
+        policy.ShouldRetry(1) shouldBe true
+        policy.ShouldRetry(2) shouldBe true
+        policy.ShouldRetry(3) shouldBe false
+    }
+
+    test("looks up policies from registrations, annotations, and the default") {
+        val annotatedName = AnnotatedRetryWork::class.java.name
+        RetryPolicies.ForWork(annotatedName) shouldBe RetryPolicy(3, Duration.ofMillis(50), Duration.ofMinutes(5))
+        RetryPolicies.ForWork("not.a.real.Work") shouldBe null
+
+        val registered = RetryPolicy(7)
+        RetryPolicies.Register(annotatedName, registered)
+        RetryPolicies.ForWork(annotatedName) shouldBe registered
+        RetryPolicies.Unregister(annotatedName)
+
+        val default = RetryPolicy(2)
+        RetryPolicies.Default = default
+        try {
+            RetryPolicies.ForWork("not.a.real.Work") shouldBe default
+        } finally {
+            RetryPolicies.Default = null
+        }
+    }
+})
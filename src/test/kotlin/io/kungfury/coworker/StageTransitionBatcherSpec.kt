@@ -0,0 +1,96 @@
+package io.kungfury.coworker
+
+import io.kotlintest.shouldBe
+import io.kotlintest.specs.FunSpec
+import io.kungfury.coworker.dbs.ConnectionManager
+import io.kungfury.coworker.dbs.ConnectionType
+
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.runBlocking
+
+import java.sql.Connection
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Function
+import kotlin.concurrent.thread
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * A connection manager that never touches a database. Batches hang until released, direct writes return at once.
+ */
+private class HeldBatchConnectionManager : ConnectionManager {
+    val batchStarted = CountDownLatch(1)
+    val releaseBatch = CountDownLatch(1)
+    val batchWrites = AtomicInteger()
+    val directWrites = AtomicInteger()
+
+    override val TIMEOUT_MS: Long = 1000L
+    override val CONNECTION_TYPE: ConnectionType = ConnectionType.POSTGRES
+
+    override fun <T> executeTransaction(query: Function<Connection, T>, commitOnExit: Boolean): T = Write()
+
+    override suspend fun <T> executeTransaction(query: suspend (Connection) -> T, commitOnExit: Boolean): T = Write()
+
+    private fun <T> Write(): T {
+        if (Thread.currentThread().name.startsWith("StageTransitionBatcher")) {
+            batchWrites.incrementAndGet()
+            batchStarted.countDown()
+            releaseBatch.await(10, TimeUnit.SECONDS)
+        } else {
+            directWrites.incrementAndGet()
+        }
+        @Suppress("UNCHECKED_CAST")
+        return true as T
+    }
+
+    override fun listenToChannel(channel: String, failureLimit: Short): ReceiveChannel<String> =
+        throw UnsupportedOperationException()
+}
+
+private class YieldingWork : DelayedKotlinWork {
+    override val Id: Long = 2
+    override val Stage: Int = 1
+    override val Priority: Int = 100
+    override val Strand: String = "default"
+    override val GarbageHeap: WorkGarbage
+        get() = throw UnsupportedOperationException()
+
+    override fun getStartTime(): Instant = Instant.now()
+    override fun serializeState(): String = "{}"
+    override fun WorkPart(state: String, coroutineContext: CoroutineContext): Job = throw UnsupportedOperationException()
+}
+
+class StageTransitionBatcherSpec : FunSpec({
+    test("yields while closing write on their own instead of failing") {
+        val connectionManager = HeldBatchConnectionManager()
+        val batcher = StageTransitionBatcher.Enable(connectionManager, Duration.ZERO)
+        val first = batcher.Submit(1, 100, "default", 2, Instant.now(), "{}", "com.example.Work")
+        connectionManager.batchStarted.await(10, TimeUnit.SECONDS) shouldBe true
+
+        // The first batch is still being written, so Close() is stuck draining it.
+        val closing = thread { batcher.Close() }
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10)
+        while (StageTransitionBatcher.ForConnectionManager(connectionManager) != null && System.nanoTime() < deadline) {
+            Thread.sleep(1)
+        }
+        StageTransitionBatcher.ForConnectionManager(connectionManager) shouldBe null
+
+        runBlocking { YieldingWork().yieldStage(connectionManager, 2) }
+        connectionManager.directWrites.get() shouldBe 1
+
+        connectionManager.releaseBatch.countDown()
+        closing.join()
+        first.get() shouldBe true
+        connectionManager.batchWrites.get() shouldBe 1
+
+        // A yield that looked the batcher up before it closed is turned down, rather than failed.
+        batcher.TrySubmit(3, 100, "default", 2, Instant.now(), "{}", "com.example.Work") shouldBe null
+        runBlocking {
+            batcher.TrySubmitAndAwait(3, 100, "default", 2, Instant.now(), "{}", "com.example.Work") shouldBe false
+        }
+    }
+})
@@ -13,4 +13,16 @@ class MarginaliaSpec : FunSpec({
         val text = Marginalia.AddMarginalia("MarginaliaSpec_append_semi", "a")
         text.endsWith(";") shouldBe true
     }
+
+    test("hands back the cached annotation for the same query") {
+        val first = Marginalia.AddMarginalia("MarginaliaSpec_cached", "SELECT 1")
+        val again = Marginalia.AddMarginalia("MarginaliaSpec_cached", StringBuilder("SELECT ").append(1).toString())
+        (again === first) shouldBe true
+    }
+
+    test("keeps the caller when an id is reused for a different query") {
+        val first = Marginalia.AddMarginalia("MarginaliaSpec_reused", "SELECT 1")
+        val second = Marginalia.AddMarginalia("MarginaliaSpec_reused", "SELECT 2")
+        second shouldBe first.replace("SELECT 1", "SELECT 2")
+    }
 })
@@ -0,0 +1,43 @@
+package io.kungfury.coworker.dbs.postgres
+
+import com.zaxxer.hikari.HikariConfig
+
+import io.kotlintest.shouldBe
+import io.kotlintest.specs.FunSpec
+
+import java.sql.SQLException
+import java.util.concurrent.TimeoutException
+
+/**
+ * Specs for the PgConnectionManager class
+ */
+class PgConnectionManagerSpec : FunSpec({
+    test("turns statement, and lock timeouts into timeout exceptions") {
+        val statementTimeout = SQLException("canceling statement due to statement timeout", "57014")
+        val converted = PgConnectionManager.AsTimeout(statementTimeout)
+        (converted is TimeoutException) shouldBe true
+        converted.cause shouldBe statementTimeout
+
+        (PgConnectionManager.AsTimeout(SQLException("could not obtain lock", "55P03")) is TimeoutException) shouldBe true
+    }
+
+    test("leaves other exceptions alone") {
+        val uniqueViolation = SQLException("duplicate key", "23505")
+        PgConnectionManager.AsTimeout(uniqueViolation) shouldBe uniqueViolation
+        val other = IllegalStateException("nope")
+        PgConnectionManager.AsTimeout(other) shouldBe other
+    }
+
+    test("hands every data source property to the driver as a string") {
+        val config = HikariConfig()
+        config.addDataSourceProperty("socketTimeout", 330L)
+        config.addDataSourceProperty("prepareThreshold", 1)
+        config.username = "coworker"
+
+        val properties = PgConnectionManager.DriverProperties(config)
+        properties.getProperty("socketTimeout") shouldBe "330"
+        properties.getProperty("prepareThreshold") shouldBe "1"
+        properties.getProperty("user") shouldBe "coworker"
+        properties.getProperty("password") shouldBe null
+    }
+})
@@ -0,0 +1,43 @@
+package io.kungfury.coworker.internal
+
+import io.kotlintest.shouldBe
+import io.kotlintest.specs.FunSpec
+
+class FairSchedulerSpec : FunSpec({
+    fun Work(id: Long, strand: String): WorkNotification {
+        val work = WorkNotification()
+        work.Id = id
+        work.Strand = strand
+        return work
+    }
+
+    test("interleaves strands instead of draining the biggest first") {
+        val work = (1L..6L).map { Work(it, "big") } + listOf(Work(7, "small"), Work(8, "other"))
+        val ordered = FairScheduler().Order(work, { 1 }, { it.Id })
+        ordered.take(3).map { it.Strand }.toSet() shouldBe setOf("big", "small", "other")
+        ordered.filter { it.Strand == "big" }.map { it.Id } shouldBe (1L..6L).toList()
+    }
+
+    test("hands out work in proportion to weight") {
+        val work = (1L..20L).map { Work(it, "heavy") } + (21L..40L).map { Work(it, "light") }
+        val ordered = FairScheduler().Order(work, { if (it == "heavy") 3 else 1 }, { it.Id })
+        ordered.take(8).count { it.Strand == "heavy" } shouldBe 6
+    }
+
+    test("claimed strands wait their turn") {
+        val scheduler = FairScheduler()
+        scheduler.Charge("a", 1)
+        scheduler.Charge("a", 1)
+        val ordered = scheduler.Order(listOf(Work(1, "a"), Work(2, "b")), { 1 }, { it.Id })
+        ordered.first().Strand shouldBe "b"
+    }
+
+    test("idle strands don't bank their share") {
+        val scheduler = FairScheduler()
+        repeat(10) { scheduler.Charge("busy", 1) }
+        // "idle" joins at the virtual time, instead of getting ten claims in a row to catch up.
+        val work = listOf(Work(1, "idle"), Work(2, "idle"), Work(3, "idle"), Work(4, "busy"))
+        val ordered = scheduler.Order(work, { 1 }, { it.Id })
+        ordered.take(2).map { it.Strand } shouldBe listOf("idle", "busy")
+    }
+})
@@ -0,0 +1,66 @@
+package io.kungfury.coworker.internal
+
+import io.kotlintest.shouldBe
+import io.kotlintest.specs.FunSpec
+
+import kotlin.concurrent.thread
+
+class LongStripedSetSpec : FunSpec({
+    test("adds, checks, and removes values") {
+        val set = LongStripedSet(16)
+        set.add(1L) shouldBe true
+        set.add(1L) shouldBe false
+        set.add(0L) shouldBe true
+        set.add(-5L) shouldBe true
+        set.size() shouldBe 3
+
+        set.contains(1L) shouldBe true
+        set.contains(0L) shouldBe true
+        set.contains(-5L) shouldBe true
+        set.contains(2L) shouldBe false
+
+        set.remove(1L) shouldBe true
+        set.remove(1L) shouldBe false
+        set.contains(1L) shouldBe false
+        set.size() shouldBe 2
+    }
+
+    test("grows past it's expected size, and keeps entries findable through removes") {
+        val set = LongStripedSet(4)
+        for (id in 1L..10000L) {
+            set.add(id) shouldBe true
+        }
+        set.size() shouldBe 10000
+        for (id in 1L..10000L step 2) {
+            set.remove(id) shouldBe true
+        }
+        for (id in 1L..10000L) {
+            set.contains(id) shouldBe (id % 2 == 0L)
+        }
+        set.size() shouldBe 5000
+    }
+
+    test("drains every value") {
+        val set = LongStripedSet(16)
+        for (id in 0L until 100L) {
+            set.add(id)
+        }
+        set.drain().sorted() shouldBe (0L until 100L).toList()
+        set.isEmpty() shouldBe true
+        set.contains(5L) shouldBe false
+    }
+
+    test("handles concurrent writers") {
+        val set = LongStripedSet(1000)
+        val threads = (0 until 8).map { offset ->
+            thread {
+                for (id in 0L until 5000L) {
+                    set.add(id * 8 + offset)
+                }
+            }
+        }
+        threads.forEach { it.join() }
+        set.size() shouldBe 40000
+        set.drain().toSet().size shouldBe 40000
+    }
+})
@@ -0,0 +1,34 @@
+package io.kungfury.coworker.internal
+
+import io.kotlintest.shouldBe
+import io.kotlintest.specs.FunSpec
+
+class NotificationsSpec : FunSpec({
+    test("formats events with a purified strand") {
+        Notifications.Event(1, 100, 1500000000, 2, "my-strand';--", "com.example.Work$1';--") shouldBe
+            "1;100;1500000000;2;my-strand--"
+    }
+
+    test("only sends purified work names once enabled") {
+        Notifications.SendWorkNames = true
+        try {
+            Notifications.Event(1, 100, 1500000000, 2, "my-strand';--", "com.example.Work$1';--") shouldBe
+                "1;100;1500000000;2;my-strand--;com.example.Work$1"
+        } finally {
+            Notifications.SendWorkNames = false
+        }
+    }
+
+    test("joins events with newlines") {
+        Notifications.Payloads(listOf("1;1;1;1;a", "2;1;1;1;b")) shouldBe listOf("1;1;1;1;a\n2;1;1;1;b")
+        Notifications.Payloads(listOf()) shouldBe listOf<String>()
+    }
+
+    test("splits events that would go over the payload limit") {
+        val events = (0 until 1000).map { Notifications.Event(it.toLong(), 100, 1500000000, 1, "default", "com.example.Work") }
+        val payloads = Notifications.Payloads(events)
+        (payloads.size > 1) shouldBe true
+        payloads.all { it.length < 8000 } shouldBe true
+        payloads.flatMap { it.split("\n") } shouldBe events
+    }
+})
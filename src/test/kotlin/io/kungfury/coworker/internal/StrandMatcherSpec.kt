@@ -0,0 +1,49 @@
+package io.kungfury.coworker.internal
+
+import io.kotlintest.shouldBe
+import io.kotlintest.specs.FunSpec
+
+class StrandMatcherSpec : FunSpec({
+    fun MatcherOf(vararg entries: Pair<String, Int>): StrandMatcher = StrandMatcher(linkedMapOf(
+        *entries.map { Pair(Pair(it.first, Regex(it.first)), it.second) }.toTypedArray()
+    ))
+
+    test("returns -1 for strands that aren't limited") {
+        MatcherOf("account:.*" to 5).LimitFor("default") shouldBe -1
+        StrandMatcher(mapOf()).LimitFor("default") shouldBe -1
+    }
+
+    test("matches literal keys") {
+        val matcher = StrandMatcher(linkedMapOf(Pair(Pair("a.b", Regex.fromLiteral("a.b")), 2)))
+        matcher.LimitFor("a.b") shouldBe 2
+        matcher.LimitFor("axb") shouldBe -1
+    }
+
+    test("the first matching entry wins") {
+        val matcher = MatcherOf("account:.*:super_heavy_job" to 3, "account:.*" to 5, "account:10" to 1)
+        matcher.LimitFor("account:10:super_heavy_job") shouldBe 3
+        matcher.LimitFor("account:10:non_heavy_job") shouldBe 5
+        matcher.LimitFor("account:10") shouldBe 5
+    }
+
+    test("an earlier exact key beats a later regex") {
+        val matcher = MatcherOf("account:10" to 1, "account:.*" to 5)
+        matcher.LimitFor("account:10") shouldBe 1
+        matcher.LimitFor("account:11") shouldBe 5
+    }
+
+    test("patterns with their own groups, and flags still match the right entry") {
+        val matcher = StrandMatcher(linkedMapOf(
+            Pair(Pair("(a)(b)?c", Regex("(a)(b)?c")), 1),
+            Pair(Pair("(x)\\1", Regex("(x)\\1")), 2),
+            Pair(Pair("upper", Regex("upper", RegexOption.IGNORE_CASE)), 3),
+            Pair(Pair("d(e|f)", Regex("d(e|f)")), 4)
+        ))
+        matcher.LimitFor("abc") shouldBe 1
+        matcher.LimitFor("ac") shouldBe 1
+        matcher.LimitFor("xx") shouldBe 2
+        matcher.LimitFor("UPPER") shouldBe 3
+        matcher.LimitFor("df") shouldBe 4
+        matcher.LimitFor("dg") shouldBe -1
+    }
+})
@@ -0,0 +1,50 @@
+package io.kungfury.coworker.state
+
+import io.kotlintest.shouldBe
+import io.kotlintest.specs.FunSpec
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+
+fun RoundTrip(codec: StateCodec, state: String): Pair<String, Int> {
+    val output = ByteArrayOutputStream()
+    codec.encode(state, output)
+    return Pair(codec.decode(ByteArrayInputStream(output.toByteArray())), output.size())
+}
+
+class CompactJsonStateCodecSpec : FunSpec({
+    test("round trips json as minified json") {
+        val state = "{ \"a\": [1, -2, 3.5, 1e5, 9223372036854775807, 123456789012345678901234567890],\n \"b\": { \"c\": null, \"d\": true, \"e\": false }, \"f\": \"\\\"quoted\\\"\\n\\u0001\" }"
+        RoundTrip(CompactJsonStateCodec, state).first shouldBe
+            "{\"a\":[1,-2,3.5,1e5,9223372036854775807,123456789012345678901234567890],\"b\":{\"c\":null,\"d\":true,\"e\":false},\"f\":\"\\\"quoted\\\"\\n\\u0001\"}"
+    }
+
+    test("round trips arrays that start with integers, but aren't only integers") {
+        val state = "[1,2,\"three\",4,[5,6],[],[7.5]]"
+        RoundTrip(CompactJsonStateCodec, state).first shouldBe state
+    }
+
+    test("handles object keys whose length collides with tags") {
+        val state = "{\"eightchr\":1,\"\":[],\"x\":{}}"
+        RoundTrip(CompactJsonStateCodec, state).first shouldBe state
+    }
+
+    test("stores states that aren't json as is") {
+        RoundTrip(CompactJsonStateCodec, "").first shouldBe ""
+        RoundTrip(CompactJsonStateCodec, "hello world").first shouldBe "hello world"
+        RoundTrip(CompactJsonStateCodec, "123abc").first shouldBe "123abc"
+        RoundTrip(CompactJsonStateCodec, "{}0").first shouldBe "{}0"
+        RoundTrip(CompactJsonStateCodec, "{\"a\": 1} trailing").first shouldBe "{\"a\": 1} trailing"
+    }
+
+    test("is smaller than json for numeric arrays") {
+        val state = (0 until 512).map { (it % 256) - 128 }.joinToString(",", "[", "]")
+        val (decoded, size) = RoundTrip(CompactJsonStateCodec, state)
+        decoded shouldBe state
+        (size < state.length / 2) shouldBe true
+    }
+
+    test("json codec stores states as is") {
+        RoundTrip(JsonStateCodec, "{ \"a\" : 1 }").first shouldBe "{ \"a\" : 1 }"
+    }
+})
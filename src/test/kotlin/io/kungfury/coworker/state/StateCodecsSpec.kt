@@ -0,0 +1,70 @@
+package io.kungfury.coworker.state
+
+import io.kotlintest.shouldBe
+import io.kotlintest.specs.FunSpec
+
+fun WithCodec(codec: StateCodec, threshold: Int, block: () -> Unit) {
+    val previousCodec = StateCodecs.Default
+    val previousThreshold = StateCodecs.CompressionThreshold
+    StateCodecs.Default = codec
+    StateCodecs.CompressionThreshold = threshold
+    try {
+        block()
+    } finally {
+        StateCodecs.Default = previousCodec
+        StateCodecs.CompressionThreshold = previousThreshold
+    }
+}
+
+class StateCodecsSpec : FunSpec({
+    val largeState = (0 until 4096).joinToString(",", "{\"items\":[", "]}") { "{\"id\":$it,\"name\":\"item\"}" }
+
+    test("small json states stay in the text column") {
+        WithCodec(JsonStateCodec, 1024) {
+            StateCodecs.Encode("{\"a\":1}") shouldBe null
+        }
+    }
+
+    test("large json states are compressed, and round trip") {
+        WithCodec(JsonStateCodec, 1024) {
+            val encoded = StateCodecs.Encode(largeState)!!
+            (encoded.size() < largeState.length / 4) shouldBe true
+            encoded.toByteArray()[0] shouldBe 0x80.toByte()
+            StateCodecs.Decode(encoded.asInputStream()) shouldBe largeState
+        }
+    }
+
+    test("the threshold counts encoded bytes, not chars") {
+        // 400 chars, but 1200 bytes in UTF-8.
+        val multiByte = "\"" + "\u20ac".repeat(398) + "\""
+        WithCodec(JsonStateCodec, 1024) {
+            val encoded = StateCodecs.Encode(multiByte)!!
+            encoded.toByteArray()[0] shouldBe 0x80.toByte()
+            StateCodecs.Decode(encoded.asInputStream()) shouldBe multiByte
+        }
+    }
+
+    test("large compact states are compressed, and round trip") {
+        WithCodec(CompactJsonStateCodec, 1024) {
+            val encoded = StateCodecs.Encode(largeState)!!
+            encoded.toByteArray()[0] shouldBe 0x81.toByte()
+            StateCodecs.Decode(encoded.asInputStream()) shouldBe largeState
+        }
+    }
+
+    test("states under the threshold aren't compressed") {
+        WithCodec(CompactJsonStateCodec, Int.MAX_VALUE) {
+            val encoded = StateCodecs.Encode(largeState)!!
+            encoded.toByteArray()[0] shouldBe 0x01.toByte()
+            StateCodecs.Decode(encoded.asInputStream()) shouldBe largeState
+        }
+    }
+
+    test("states that don't shrink when compressed are stored uncompressed") {
+        WithCodec(JsonStateCodec, 1) {
+            val encoded = StateCodecs.Encode("{}")!!
+            encoded.toByteArray()[0] shouldBe 0x00.toByte()
+            StateCodecs.Decode(encoded.asInputStream()) shouldBe "{}"
+        }
+    }
+})